@@ -3,6 +3,7 @@ package com.yulong.http2.client;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,12 +18,19 @@ import com.yulong.http2.client.message.PseudoHeader;
  */
 public class Client implements AutoCloseable {
 
+	private final ConnectionFactory factory;
 	private Connection conn;
 	private final List<Cookie> cookies;
 	private boolean urlRewriting = false;
 
 	public Client(StartBy startBy, String host, int port) throws Http2StartingException {
-		this.conn = new ConnectionFactory().create(startBy, host, port);
+		this.factory = new ConnectionFactory();
+		try {
+			this.conn = factory.createManaged(startBy, host, port);
+		} catch (Http2StartingException e) {
+			factory.close();
+			throw e;
+		}
 		this.cookies = new ArrayList<>();
 	}
 
@@ -32,6 +40,52 @@ public class Client implements AutoCloseable {
 
 	public Http2Response send(Http2Request request) throws ConnectionException {
 
+		applyCookies(request);
+
+		// Send the request:
+		Http2Response response = request.send();
+
+		updateCookies(response);
+
+		// redirect if the status code is 302 or 303:
+		Http2Request redirect = redirectOf(response);
+		if (redirect != null) {
+			response = send(redirect);
+		}
+
+		return response;
+
+	}
+
+	/**
+	 * Send the request without blocking the calling thread, the cookies and
+	 * the redirections are handled as the responses arrive
+	 * 
+	 * @param request
+	 * @return a future completed with the final response
+	 */
+	public CompletableFuture<Http2Response> sendAsync(Http2Request request) {
+
+		applyCookies(request);
+
+		return request.sendAsync().thenCompose(response -> {
+			updateCookies(response);
+			Http2Request redirect = redirectOf(response);
+			if (redirect != null) {
+				return sendAsync(redirect);
+			}
+			return CompletableFuture.completedFuture(response);
+		});
+
+	}
+
+	/**
+	 * Add the client cookies to the request
+	 * 
+	 * @param request
+	 */
+	private synchronized void applyCookies(Http2Request request) {
+
 		if (urlRewriting) {
 			if (!cookies.isEmpty()) {
 
@@ -71,10 +125,14 @@ public class Client implements AutoCloseable {
 
 		}
 
-		// Send the request:
-		Http2Response response = request.send();
+	}
 
-		// Update the client cookie if necessary:
+	/**
+	 * Update the client cookies if necessary
+	 * 
+	 * @param response
+	 */
+	private synchronized void updateCookies(Http2Response response) {
 		Pattern cookiePattern = Pattern.compile(".*?([^=]+)=([^;]+?);.*", Pattern.CASE_INSENSITIVE);
 		Header[] setCookieHeaders = response.headers().all("set-cookie");
 		for (Header header : setCookieHeaders) {
@@ -88,29 +146,35 @@ public class Client implements AutoCloseable {
 				cookies.add(cookie);
 			}
 		}
+	}
 
-		// redirect if the status code is 302 or 303:
-		int statusCode = response.statusCode();
-		if (statusCode == 302 || statusCode == 303) {
-
-			// Get the redirected path:
-			String redirectPath = null;
-			String location = response.headers().first("location").getValue();
-
-			Pattern pathPattern = Pattern.compile("http[s]?://[^:]+?:[^/]+(.*)", Pattern.CASE_INSENSITIVE);
-			Matcher pathMatcher = pathPattern.matcher(location);
-			if (pathMatcher.matches()) {
-				redirectPath = pathMatcher.group(1);
-			}
+	/**
+	 * Build the request following the redirection if the status code is 302
+	 * or 303
+	 * 
+	 * @param response
+	 * @return the redirected request, or null if none
+	 */
+	private Http2Request redirectOf(Http2Response response) {
 
-			assert redirectPath != null;
+		int statusCode = response.statusCode();
+		if (statusCode != 302 && statusCode != 303) {
+			return null;
+		}
 
-			Http2Request redirect = newRequestBuilder().get(redirectPath).build();
-			response = send(redirect);
+		// Get the redirected path:
+		String redirectPath = null;
+		String location = response.headers().first("location").getValue();
 
+		Pattern pathPattern = Pattern.compile("http[s]?://[^:]+?:[^/]+(.*)", Pattern.CASE_INSENSITIVE);
+		Matcher pathMatcher = pathPattern.matcher(location);
+		if (pathMatcher.matches()) {
+			redirectPath = pathMatcher.group(1);
 		}
 
-		return response;
+		assert redirectPath != null;
+
+		return newRequestBuilder().get(redirectPath).build();
 
 	}
 
@@ -123,6 +187,7 @@ public class Client implements AutoCloseable {
 		if (conn != null) {
 			conn.close();
 		}
+		factory.close();
 	}
 
 	public static class Cookie {
@@ -1,9 +1,13 @@
 package com.yulong.http2.client;
 
 import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
 
 import com.yulong.http2.client.common.ErrorCodeRegistry;
 import com.yulong.http2.client.common.Http2Settings;
+import com.yulong.http2.client.common.StreamAdmissionStats;
 import com.yulong.http2.client.frame.Frame;
 import com.yulong.http2.client.frame.GoAwayFrame;
 import com.yulong.http2.client.frame.PingFrame;
@@ -26,6 +30,13 @@ public interface Connection extends Closeable {
 	 */
 	void send(Frame frame) throws ConnectionException;
 
+	/**
+	 * Flush the frames that have been sent but not yet written to the socket.
+	 * The frames are flushed anyway at the end of the current event loop tick,
+	 * so calling it is only necessary to push them out earlier.
+	 */
+	void flush();
+
 	/**
 	 * Get the stream according to the given stream identifier
 	 * 
@@ -34,6 +45,15 @@ public interface Connection extends Closeable {
 	 */
 	Stream getStream(int streamId);
 
+	/**
+	 * Get the stream according to the given stream identifier, without
+	 * creating it
+	 * 
+	 * @param streamId
+	 * @return the stream, or null if it's not on this connection
+	 */
+	Stream findStream(int streamId);
+
 	/**
 	 * Get the connection control stream whose stream id is 0
 	 * 
@@ -83,6 +103,74 @@ public interface Connection extends Closeable {
 	 */
 	Stream newStream();
 
+	/**
+	 * If new streams can still be opened on the connection: not once a GOAWAY
+	 * is sent or received, nor when the stream identifiers are exhausted
+	 * 
+	 * @return
+	 */
+	boolean acceptsNewStreams();
+
+	/**
+	 * The number of the stream identifiers left for the new streams
+	 * 
+	 * @return
+	 */
+	int remainingStreamIds();
+
+	/**
+	 * Take no new stream, and close the connection gracefully once the active
+	 * streams are done
+	 * 
+	 * @return a future completed once the connection is closed
+	 */
+	CompletableFuture<Void> shutdown();
+
+	/**
+	 * Run a callback once the connection is about to stop taking new streams:
+	 * when a GOAWAY is sent or received, when it's shut down or closed, or
+	 * when fewer stream identifiers than the given reserve are left. It's run
+	 * once, right away if it's already the case.
+	 * 
+	 * @param streamIdReserve
+	 * @param callback
+	 */
+	void whenDraining(int streamIdReserve, Runnable callback);
+
+	/**
+	 * Get the connection the next stream is to be opened on: this one, or one
+	 * of the connections behind it. The admission, the stream and its frames
+	 * must all go through the same connection. It never blocks, as it may be
+	 * called in the event loop.
+	 * 
+	 * @return a future completed with the connection once it's open, or with a
+	 *         ConnectionException if none can be opened
+	 */
+	CompletableFuture<Connection> selectConnection();
+
+	/**
+	 * Wait for a place among the concurrent streams allowed by the peer's
+	 * SETTINGS_MAX_CONCURRENT_STREAMS, the requests beyond the limit wait in
+	 * FIFO order. The next stream created by newStream() takes the place.
+	 * 
+	 * @return a future completed once admitted
+	 */
+	CompletableFuture<Void> admitStream();
+
+	/**
+	 * Create a new stream that is in IDEL state once admitted by admitStream()
+	 * 
+	 * @return
+	 */
+	CompletableFuture<Stream> newStreamAsync();
+
+	/**
+	 * Get the metrics of the admission of the new streams
+	 * 
+	 * @return
+	 */
+	StreamAdmissionStats admissionStats();
+
 	/**
 	 * Return the connection's settings
 	 * 
@@ -91,21 +179,21 @@ public interface Connection extends Closeable {
 	Http2Settings currentSettings();
 
 	/**
-	 * Decode the given header block using the current Decoder instance
+	 * Decode the given header block using the HPACK context of the connection
 	 * 
 	 * @param headerBlock
 	 * @return
 	 * @throws ConnectionException
 	 */
-	Http2Headers decode(byte[] headerBlock) throws ConnectionException;
+	Http2Headers decode(ByteBuf headerBlock) throws ConnectionException;
 
 	/**
-	 * Encode the given headers using the current Encoder instance
+	 * Encode the given headers using the HPACK context of the connection
 	 * 
 	 * @param headers
 	 * @return
 	 */
-	byte[] encode(Http2Headers headers);
+	ByteBuf encode(Http2Headers headers);
 
 	/**
 	 * Wait for the connection to be upgraded
@@ -2,23 +2,68 @@ package com.yulong.http2.client;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
+import com.yulong.http2.client.Stream.StateListener;
 import com.yulong.http2.client.frame.FrameHistory;
 import com.yulong.http2.client.frame.SettingsFrame;
 
 public class ConnectionConfig {
 
+	public static enum Transport {
+		nio, epoll
+	}
+
 	private byte[] connectionPreface;
 	private boolean sendAcknowledgePrefaceImmediately;
 	private List<Consumer<FrameHistory>> frameConsumers;
+	private List<StateListener> streamStateListeners;
 	private boolean drainStreamOnClose;
+	private boolean zeroCopyDecoding;
+	private boolean writeBatching;
+	private long maxHeaderListSize;
+	private int dataSchedulingQuantum;
+	private float windowUpdateRatio;
+	private boolean receiveWindowAutoTuning;
+	private int maxReceiveWindowSize;
+	private Executor callbackExecutor;
+	private int flushThreshold;
+	private int flushConsolidation;
+	private int eventLoopThreads;
+	private Transport transport;
+	private boolean tcpQuickAck;
+	private boolean tcpFastOpenConnect;
+	private boolean epollEdgeTriggered;
+	private int connectTimeoutMillis;
+	private int handshakeTimeoutMillis;
+	private boolean fastStart;
 
 	public ConnectionConfig() {
 		connectionPreface = SettingsFrame.EMPTY.toConnectionPreface();
 		sendAcknowledgePrefaceImmediately = true;
 		frameConsumers = new LinkedList<>();
+		streamStateListeners = new CopyOnWriteArrayList<>();
 		drainStreamOnClose = false;
+		zeroCopyDecoding = false;
+		writeBatching = true;
+		maxHeaderListSize = 0xFFFFFFFFL;
+		dataSchedulingQuantum = 16384;
+		windowUpdateRatio = 0.5f;
+		receiveWindowAutoTuning = false;
+		maxReceiveWindowSize = 16 * 1024 * 1024;
+		callbackExecutor = null;
+		flushThreshold = 65536;
+		flushConsolidation = 0;
+		eventLoopThreads = 0;
+		transport = Transport.nio;
+		tcpQuickAck = false;
+		tcpFastOpenConnect = false;
+		epollEdgeTriggered = true;
+		connectTimeoutMillis = 5000;
+		handshakeTimeoutMillis = 5000;
+		fastStart = false;
 	}
 
 	public byte[] getConnectionPreface() {
@@ -48,6 +93,22 @@ public class ConnectionConfig {
 		return this;
 	}
 
+	public List<StateListener> getStreamStateListeners() {
+		return streamStateListeners;
+	}
+
+	/**
+	 * Add a listener called on every state change of every stream of the
+	 * connection, before the listeners of the stream itself
+	 * 
+	 * @param streamStateListener
+	 * @return
+	 */
+	public ConnectionConfig addStreamStateListener(StateListener streamStateListener) {
+		this.streamStateListeners.add(streamStateListener);
+		return this;
+	}
+
 	public boolean isDrainStreamOnClose() {
 		return drainStreamOnClose;
 	}
@@ -57,4 +118,314 @@ public class ConnectionConfig {
 		return this;
 	}
 
+	public boolean isZeroCopyDecoding() {
+		return zeroCopyDecoding;
+	}
+
+	/**
+	 * If true, the received frames are views over the inbound buffer instead of
+	 * copies. In that case, the frames given to the frame consumers are only
+	 * valid during the call: the payload of a frame kept in a FrameHistory is
+	 * released afterwards. False by default.
+	 * 
+	 * @param zeroCopyDecoding
+	 * @return
+	 */
+	public ConnectionConfig setZeroCopyDecoding(boolean zeroCopyDecoding) {
+		this.zeroCopyDecoding = zeroCopyDecoding;
+		return this;
+	}
+
+	public boolean isWriteBatching() {
+		return writeBatching;
+	}
+
+	/**
+	 * If true, the frames sent are not flushed one by one, they are flushed
+	 * once per event loop tick or as soon as the flush threshold is reached.
+	 * 
+	 * @param writeBatching
+	 * @return
+	 */
+	public ConnectionConfig setWriteBatching(boolean writeBatching) {
+		this.writeBatching = writeBatching;
+		return this;
+	}
+
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	/**
+	 * The number of bytes written since the last flush that triggers an
+	 * immediate flush when write batching is enabled
+	 * 
+	 * @param flushThreshold
+	 * @return
+	 */
+	public ConnectionConfig setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+		return this;
+	}
+
+	public int getFlushConsolidation() {
+		return flushConsolidation;
+	}
+
+	/**
+	 * If larger than 0, a FlushConsolidationHandler is added to the pipeline
+	 * which flushes at most once per the given number of flushes while a read
+	 * is in progress. 0 (the default) means no such handler.
+	 * 
+	 * @param explicitFlushAfterFlushes
+	 * @return
+	 */
+	public ConnectionConfig setFlushConsolidation(int explicitFlushAfterFlushes) {
+		this.flushConsolidation = explicitFlushAfterFlushes;
+		return this;
+	}
+
+	public long getMaxHeaderListSize() {
+		return maxHeaderListSize;
+	}
+
+	/**
+	 * The maximum size of a received header list (RFC 7540, Section 6.5.2).
+	 * A larger header list resets the stream, a much larger one closes the
+	 * connection. Unlimited by default, since the peer can't know about a
+	 * limit not advertised: when setting it, send the same
+	 * SETTINGS_MAX_HEADER_LIST_SIZE in the connection preface. Sending
+	 * SETTINGS_MAX_HEADER_LIST_SIZE overrides it once acknowledged.
+	 * 
+	 * @param maxHeaderListSize
+	 * @return
+	 */
+	public ConnectionConfig setMaxHeaderListSize(long maxHeaderListSize) {
+		this.maxHeaderListSize = maxHeaderListSize;
+		return this;
+	}
+
+	public int getDataSchedulingQuantum() {
+		return dataSchedulingQuantum;
+	}
+
+	/**
+	 * The maximum number of bytes of DATA a stream sends before the scheduler
+	 * lets the other streams sharing the connection window have their turn
+	 * according to the priority tree
+	 * 
+	 * @param dataSchedulingQuantum
+	 * @return
+	 */
+	public ConnectionConfig setDataSchedulingQuantum(int dataSchedulingQuantum) {
+		this.dataSchedulingQuantum = dataSchedulingQuantum;
+		return this;
+	}
+
+	public float getWindowUpdateRatio() {
+		return windowUpdateRatio;
+	}
+
+	/**
+	 * The ratio of a receive window, of a stream or of the connection, that
+	 * must be consumed before a WINDOW_UPDATE frame gives the credit back to
+	 * the peer. The connection window is shared by all the streams. 0 sends a
+	 * WINDOW_UPDATE for every DATA frame received.
+	 * 
+	 * @param windowUpdateRatio a value between 0 and 1
+	 * @return
+	 */
+	public ConnectionConfig setWindowUpdateRatio(float windowUpdateRatio) {
+		this.windowUpdateRatio = windowUpdateRatio;
+		return this;
+	}
+
+	public boolean isReceiveWindowAutoTuning() {
+		return receiveWindowAutoTuning;
+	}
+
+	/**
+	 * If true, the receive windows of the connection and of the streams grow
+	 * with the bandwidth-delay product measured with PING frames, up to the max
+	 * receive window size
+	 * 
+	 * @param receiveWindowAutoTuning
+	 * @return
+	 */
+	public ConnectionConfig setReceiveWindowAutoTuning(boolean receiveWindowAutoTuning) {
+		this.receiveWindowAutoTuning = receiveWindowAutoTuning;
+		return this;
+	}
+
+	public int getMaxReceiveWindowSize() {
+		return maxReceiveWindowSize;
+	}
+
+	/**
+	 * The size the auto-tuning grows the receive windows to at most. It bounds
+	 * the memory used to buffer the DATA in flight: the connection window by
+	 * itself, and each stream window as the peer may fill several streams at
+	 * once only within the connection window.
+	 * 
+	 * @param maxReceiveWindowSize
+	 * @return
+	 */
+	public ConnectionConfig setMaxReceiveWindowSize(int maxReceiveWindowSize) {
+		this.maxReceiveWindowSize = maxReceiveWindowSize;
+		return this;
+	}
+
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	/**
+	 * The executor completing the futures of the responses and of the DATA
+	 * sent, i.e. running the callbacks chained to them. It's shared by all the
+	 * streams of the connection. By default (null), they are completed in the
+	 * event loop of the connection, so the callbacks must not block.
+	 * 
+	 * @param callbackExecutor
+	 * @return
+	 */
+	public ConnectionConfig setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+		return this;
+	}
+
+	public int getEventLoopThreads() {
+		return eventLoopThreads;
+	}
+
+	/**
+	 * The number of the event loop threads shared by the connections of a
+	 * ConnectionFactory, each connection being served by one of them. By
+	 * default (0), it's twice the number of the processors.
+	 * 
+	 * @param eventLoopThreads
+	 * @return
+	 */
+	public ConnectionConfig setEventLoopThreads(int eventLoopThreads) {
+		this.eventLoopThreads = eventLoopThreads;
+		return this;
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * The transport of the connections opened by a ConnectionFactory. The
+	 * native epoll transport, on Linux only, falls back to NIO if it's not
+	 * available.
+	 * 
+	 * @param transport
+	 * @return
+	 */
+	public ConnectionConfig setTransport(Transport transport) {
+		this.transport = transport;
+		return this;
+	}
+
+	public boolean isTcpQuickAck() {
+		return tcpQuickAck;
+	}
+
+	/**
+	 * Acknowledge the received segments right away rather than delaying the
+	 * ACKs (TCP_QUICKACK), with the epoll transport only
+	 * 
+	 * @param tcpQuickAck
+	 * @return
+	 */
+	public ConnectionConfig setTcpQuickAck(boolean tcpQuickAck) {
+		this.tcpQuickAck = tcpQuickAck;
+		return this;
+	}
+
+	public boolean isTcpFastOpenConnect() {
+		return tcpFastOpenConnect;
+	}
+
+	/**
+	 * Send the first bytes along with the SYN to the servers that have given
+	 * a TCP Fast Open cookie (TCP_FASTOPEN_CONNECT), with the epoll transport
+	 * only
+	 * 
+	 * @param tcpFastOpenConnect
+	 * @return
+	 */
+	public ConnectionConfig setTcpFastOpenConnect(boolean tcpFastOpenConnect) {
+		this.tcpFastOpenConnect = tcpFastOpenConnect;
+		return this;
+	}
+
+	public boolean isEpollEdgeTriggered() {
+		return epollEdgeTriggered;
+	}
+
+	/**
+	 * Use the edge-triggered mode (default) of the epoll transport, or the
+	 * level-triggered one
+	 * 
+	 * @param epollEdgeTriggered
+	 * @return
+	 */
+	public ConnectionConfig setEpollEdgeTriggered(boolean epollEdgeTriggered) {
+		this.epollEdgeTriggered = epollEdgeTriggered;
+		return this;
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * The time allowed to establish the TCP connection
+	 * 
+	 * @param connectTimeoutMillis
+	 * @return
+	 */
+	public ConnectionConfig setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		return this;
+	}
+
+	public int getHandshakeTimeoutMillis() {
+		return handshakeTimeoutMillis;
+	}
+
+	/**
+	 * The time allowed, once connected, for the peer to acknowledge the
+	 * connection preface, including the TLS handshake or the HTTP/1.1 Upgrade
+	 * if any
+	 * 
+	 * @param handshakeTimeoutMillis
+	 * @return
+	 */
+	public ConnectionConfig setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+		return this;
+	}
+
+	public boolean isFastStart() {
+		return fastStart;
+	}
+
+	/**
+	 * Hand out a new connection as soon as the connection preface is sent,
+	 * rather than once the peer has acknowledged it, so that the first
+	 * request follows the preface without waiting a round trip (RFC 7540,
+	 * Section 3.5). The SETTINGS of the peer are assumed to be the initial
+	 * values until they are received. It applies to the prior knowledge and
+	 * the ALPN starts, not to the upgrade.
+	 * 
+	 * @param fastStart
+	 * @return
+	 */
+	public ConnectionConfig setFastStart(boolean fastStart) {
+		this.fastStart = fastStart;
+		return this;
+	}
+
 }
@@ -4,18 +4,31 @@ import static com.yulong.http2.client.common.Constants.HTTP_UPGRADE_PROTOCOL_NAM
 import static com.yulong.http2.client.common.Constants.HTTP_UPGRADE_SETTINGS_HEADER;
 import static com.yulong.http2.client.utils.LogUtil.log;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ConnectTimeoutException;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import com.yulong.http2.client.Connection.StartBy;
+import com.yulong.http2.client.ConnectionConfig.Transport;
 import com.yulong.http2.client.common.SettingsRegistry;
 import com.yulong.http2.client.frame.SettingsFrame;
 import com.yulong.http2.client.message.Header;
@@ -25,9 +38,18 @@ import com.yulong.http2.client.netty.Http2Initializer;
 import com.yulong.http2.client.netty.Http2PriorKnowledgeInitializer;
 import com.yulong.http2.client.netty.Http2UpgradeInitializer;
 
-public class ConnectionFactory {
+/**
+ * Open the HTTP/2 connections. The connections share the event loop group of
+ * the factory, each of them is served by one of its event loops in turn. The
+ * group is shut down when the factory is closed, unless it's given by the
+ * user.
+ */
+public class ConnectionFactory implements Closeable {
 
 	private final ConnectionConfig config;
+	private final EventLoopGroup eventLoopGroup;
+	private final boolean ownEventLoopGroup;
+	private final boolean epoll;
 
 	public ConnectionFactory() {
 		this(new ConnectionConfig());
@@ -35,6 +57,49 @@ public class ConnectionFactory {
 
 	public ConnectionFactory(ConnectionConfig config) {
 		this.config = config;
+		this.epoll = useEpoll(config.getTransport());
+		// Daemon threads, so that a factory never closed doesn't keep the JVM
+		// alive:
+		DefaultThreadFactory threadFactory = new DefaultThreadFactory("http2-client", true);
+		if (epoll) {
+			this.eventLoopGroup = new EpollEventLoopGroup(config.getEventLoopThreads(), threadFactory);
+		} else {
+			this.eventLoopGroup = new NioEventLoopGroup(config.getEventLoopThreads(), threadFactory);
+		}
+		this.ownEventLoopGroup = true;
+	}
+
+	/**
+	 * Open the connections in the given event loop group, which is left to the
+	 * user to shut down. The transport follows the group, the one of the config
+	 * is ignored.
+	 * 
+	 * @param config
+	 * @param eventLoopGroup
+	 */
+	public ConnectionFactory(ConnectionConfig config, EventLoopGroup eventLoopGroup) {
+		this.config = config;
+		this.eventLoopGroup = eventLoopGroup;
+		this.ownEventLoopGroup = false;
+		this.epoll = eventLoopGroup instanceof EpollEventLoopGroup;
+	}
+
+	/**
+	 * Use the native epoll transport if it's asked for and available, NIO
+	 * otherwise
+	 * 
+	 * @param transport
+	 * @return
+	 */
+	private static boolean useEpoll(Transport transport) {
+		if (transport != Transport.epoll) {
+			return false;
+		}
+		if (!Epoll.isAvailable()) {
+			log("The native epoll transport is not available, falling back to NIO: " + Epoll.unavailabilityCause());
+			return false;
+		}
+		return true;
 	}
 
 	public ConnectionFactory(byte[] connectionPreface) {
@@ -57,6 +122,36 @@ public class ConnectionFactory {
 		return create(startBy, host, port, null, null, null, null);
 	}
 
+	/**
+	 * Open an HTTP/2 connection without blocking the calling thread, e.g. to
+	 * open many of them in parallel
+	 * 
+	 * @param startBy
+	 * @param host
+	 * @param port
+	 * @return a future completed with the connection once the peer has
+	 *         acknowledged the connection preface, or with an
+	 *         Http2StartingException
+	 */
+	public CompletableFuture<Connection> createAsync(StartBy startBy, String host, int port) {
+		return createAsync(startBy, host, port, null, null, null, null);
+	}
+
+	/**
+	 * Open an HTTP/2 connection which is replaced transparently by a new one
+	 * when the peer sends GOAWAY or the stream identifiers run low, for the
+	 * clients running for a long time
+	 * 
+	 * @param startBy
+	 * @param host
+	 * @param port
+	 * @return
+	 * @throws Http2StartingException
+	 */
+	public ManagedConnection createManaged(StartBy startBy, String host, int port) throws Http2StartingException {
+		return new ManagedConnection(() -> createAsync(startBy, host, port));
+	}
+
 	/**
 	 * Opean an HTTP/2 connection according to the given StartBy method. User can provide
 	 * arbitrary values for method, path, header and requestBody
@@ -74,60 +169,175 @@ public class ConnectionFactory {
 	public Connection create(StartBy startBy, String host, int port, String method, String path, List<Header> headers,
 			String requestBody) throws Http2StartingException {
 
-		EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-		Http2Initializer initializer = null;
-		switch (startBy) {
-		case upgrade:
-			if (method == null) {
-				method = "OPTIONS";
-				requestBody = null;
+		CompletableFuture<Connection> future = createAsync(startBy, host, port, method, path, headers, requestBody);
+		// Both the connect and the handshake timeouts apply to the future:
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
 			}
-			if (path == null) {
-				path = "*";
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Http2StartingException) {
+				throw (Http2StartingException) e.getCause();
 			}
-			if (headers == null) {
-				headers = new ArrayList<Header>();
-				headers.add(new Header("Connection", "Upgrade, " + HTTP_UPGRADE_SETTINGS_HEADER));
-				headers.add(new Header("Upgrade", HTTP_UPGRADE_PROTOCOL_NAME));
-				SettingsFrame settingsFrame = new SettingsFrame(new TreeMap<SettingsRegistry, Integer>() {
-					{
-						put(SettingsRegistry.MAX_CONCURRENT_STREAMS, 100);
-					}
-				});
-				headers.add(new Header(HTTP_UPGRADE_SETTINGS_HEADER, settingsFrame.toUrlEncoded()));
+			throw new Http2StartingException(String.format("Failed to connect to %s:%d", host, port), e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
 			}
-			initializer = new Http2UpgradeInitializer(host, port, method, path, headers, requestBody, config, workerGroup);
-			break;
-		case alpn:
-			initializer = new Http2AlpnInitializer(host, port, config, workerGroup);
-			break;
-		case prior_knowledge:
-			initializer = new Http2PriorKnowledgeInitializer(host, port, config, workerGroup);
-			break;
+		}
+
+	}
+
+	/**
+	 * Open an HTTP/2 connection as create() does, without blocking the calling
+	 * thread. The future is completed in the event loop of the connection.
+	 * Cancelling it closes the connection.
+	 * 
+	 * @param startBy
+	 * @param host
+	 * @param port
+	 * @param method
+	 * @param path
+	 * @param headers
+	 * @param requestBody
+	 * @return
+	 */
+	public CompletableFuture<Connection> createAsync(StartBy startBy, String host, int port, String method,
+			String path, List<Header> headers, String requestBody) {
+
+		Http2Initializer initializer = null;
+		try {
+			switch (startBy) {
+			case upgrade:
+				if (method == null) {
+					method = "OPTIONS";
+					requestBody = null;
+				}
+				if (path == null) {
+					path = "*";
+				}
+				if (headers == null) {
+					headers = new ArrayList<Header>();
+					headers.add(new Header("Connection", "Upgrade, " + HTTP_UPGRADE_SETTINGS_HEADER));
+					headers.add(new Header("Upgrade", HTTP_UPGRADE_PROTOCOL_NAME));
+					SettingsFrame settingsFrame = new SettingsFrame(new TreeMap<SettingsRegistry, Integer>() {
+						{
+							put(SettingsRegistry.MAX_CONCURRENT_STREAMS, 100);
+						}
+					});
+					headers.add(new Header(HTTP_UPGRADE_SETTINGS_HEADER, settingsFrame.toUrlEncoded()));
+				}
+				initializer = new Http2UpgradeInitializer(host, port, method, path, headers, requestBody, config);
+				break;
+			case alpn:
+				initializer = new Http2AlpnInitializer(host, port, config);
+				break;
+			case prior_knowledge:
+				initializer = new Http2PriorKnowledgeInitializer(host, port, config);
+				break;
+			}
+		} catch (Http2StartingException e) {
+			CompletableFuture<Connection> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
 		}
 
 		Bootstrap b = new Bootstrap();
-		b.group(workerGroup).channel(NioSocketChannel.class).handler(initializer).option(ChannelOption.SO_KEEPALIVE, true);
+		b.group(eventLoopGroup).handler(initializer).option(ChannelOption.SO_KEEPALIVE, true)
+				.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getConnectTimeoutMillis());
+		if (epoll) {
+			b.channel(EpollSocketChannel.class).option(EpollChannelOption.TCP_QUICKACK, config.isTcpQuickAck())
+					.option(EpollChannelOption.TCP_FASTOPEN_CONNECT, config.isTcpFastOpenConnect())
+					.option(EpollChannelOption.EPOLL_MODE,
+							config.isEpollEdgeTriggered() ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+		} else {
+			b.channel(NioSocketChannel.class);
+		}
 
+		CompletableFuture<Connection> result = new CompletableFuture<>();
 		ChannelFuture f = b.connect(host, port);
-		if (!f.awaitUninterruptibly(5, TimeUnit.SECONDS)) {
-			throw new Http2StartingException(String.format("Timed out waiting for connecting to %s:%d", host, port));
-		}
+		result.whenComplete((connection, e) -> {
+			if (result.isCancelled()) {
+				f.cancel(false);
+				f.channel().close();
+			}
+		});
 
-		assert f.isDone();
+		Http2Initializer frameInitializer = initializer;
+		f.addListener((ChannelFuture connected) -> {
+			if (connected.isCancelled()) {
+				result.completeExceptionally(new Http2StartingException("Connection attempt cancelled by user"));
+			} else if (connected.cause() instanceof ConnectTimeoutException) {
+				result.completeExceptionally(new Http2StartingException(
+						String.format("Timed out waiting for connecting to %s:%d", host, port), connected.cause()));
+			} else if (!connected.isSuccess()) {
+				result.completeExceptionally(new Http2StartingException(
+						String.format("Failed to connect to %s:%d", host, port), connected.cause()));
+			} else {
+				log(String.format("Connected to %s:%d ...", host, port));
+				// The upgrade must be accepted before any HTTP/2 frame is sent:
+				boolean fastStart = config.isFastStart() && startBy != StartBy.upgrade;
+				awaitConfirmation(connected.channel(), frameInitializer.getFrameHandler(), fastStart, result);
+			}
+		});
 
-		if (f.isCancelled()) {
-			throw new Http2StartingException("Connection attempt cancelled by user");
-		} else if (!f.isSuccess()) {
-			throw new Http2StartingException(String.format("Failed to connect to %s:%d", host, port), f.cause());
-		} else {
-			log(String.format("Connected to %s:%d ...", host, port));
-			Http2FrameHandler frameHandler = initializer.getFrameHandler();
-			frameHandler.awaitConfirmation(5L, TimeUnit.SECONDS);
-			return frameHandler;
+		return result;
+
+	}
+
+	/**
+	 * Complete the result once the peer acknowledges the connection preface,
+	 * or fail it and close the channel. With a fast start, the result is
+	 * completed as soon as the preface is sent, and the channel is closed if
+	 * the acknowledgement doesn't come.
+	 * 
+	 * @param channel
+	 * @param frameHandler
+	 * @param fastStart
+	 * @param result
+	 */
+	private void awaitConfirmation(Channel channel, Http2FrameHandler frameHandler, boolean fastStart,
+			CompletableFuture<Connection> result) {
+		ChannelFuture confirmation = frameHandler.confirmation(config.getHandshakeTimeoutMillis(),
+				TimeUnit.MILLISECONDS);
+		confirmation.addListener((ChannelFuture confirmed) -> {
+			if (!confirmed.isSuccess()) {
+				channel.close();
+				Throwable cause = confirmed.cause();
+				if (!result.completeExceptionally(cause instanceof Http2StartingException ? cause
+						: new Http2StartingException("Failed to start HTTP/2", cause))) {
+					log("Failed to start HTTP/2 on the fast-started connection, closing it: " + cause);
+				}
+			} else if (!fastStart && !result.complete(frameHandler)) {
+				// Given up meanwhile:
+				frameHandler.close();
+			}
+		});
+		if (fastStart) {
+			// The frames written from now on follow the preface:
+			frameHandler.prefaceSent().thenRun(() -> {
+				if (!result.complete(frameHandler) && !result.isCompletedExceptionally()) {
+					frameHandler.close();
+				}
+			});
 		}
+	}
 
+	/**
+	 * Shut down the event loop group of the factory, closing the connections
+	 * still open
+	 */
+	@Override
+	public void close() {
+		if (ownEventLoopGroup) {
+			eventLoopGroup.shutdownGracefully();
+		}
 	}
 
 }
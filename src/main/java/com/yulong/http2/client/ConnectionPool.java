@@ -0,0 +1,633 @@
+package com.yulong.http2.client;
+
+import static com.yulong.http2.client.utils.LogUtil.log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import com.yulong.http2.client.Connection.StartBy;
+import com.yulong.http2.client.common.ErrorCodeRegistry;
+import com.yulong.http2.client.common.Http2Settings;
+import com.yulong.http2.client.common.StreamAdmissionStats;
+import com.yulong.http2.client.frame.Frame;
+import com.yulong.http2.client.frame.GoAwayFrame;
+import com.yulong.http2.client.frame.PingFrame;
+import com.yulong.http2.client.frame.SettingsFrame;
+import com.yulong.http2.client.message.Http2Headers;
+import com.yulong.http2.client.message.Http2Request;
+
+/**
+ * The HTTP/2 connections to any number of origins, by scheme, host and port.
+ * The requests of an origin are multiplexed over its connections: each new
+ * stream goes to the least loaded connection, by its active and waiting
+ * streams against the SETTINGS_MAX_CONCURRENT_STREAMS of the peer. Another
+ * connection is opened when they are all saturated, up to a maximum per
+ * origin.
+ * <p>
+ * The connections which can no longer take new streams, e.g. after a GOAWAY,
+ * are evicted and closed once their active streams are done. The connections
+ * without any stream for a while are closed.
+ */
+public class ConnectionPool implements Closeable {
+
+	// The maximum number of the connections per origin:
+	private static final int MAX_CONNECTIONS = Integer.getInteger("http2.pool.max.connections", 4);
+	// Close a connection without any stream after this idle time:
+	private static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("http2.pool.idle.timeout", 60);
+
+	private final ConnectionFactory factory;
+	private final StartBy cleartextStartBy;
+	private final ConcurrentMap<Origin, OriginConnections> origins = new ConcurrentHashMap<>();
+	private final HashedWheelTimer reaper = new HashedWheelTimer(new DefaultThreadFactory("http2-pool-reaper", true));
+	private volatile boolean closed;
+
+	/**
+	 * Connect to the "http" origins with the prior knowledge of HTTP/2
+	 * 
+	 * @param factory
+	 */
+	public ConnectionPool(ConnectionFactory factory) {
+		this(factory, StartBy.prior_knowledge);
+	}
+
+	/**
+	 * Connect to the "https" origins by ALPN, and to the "http" origins by the
+	 * given method
+	 * 
+	 * @param factory
+	 * @param cleartextStartBy
+	 */
+	public ConnectionPool(ConnectionFactory factory, StartBy cleartextStartBy) {
+		this.factory = factory;
+		this.cleartextStartBy = cleartextStartBy;
+		scheduleReaping();
+	}
+
+	/**
+	 * Get the connection to an origin, which opens each new stream on the
+	 * least loaded connection of the pool to the origin
+	 * 
+	 * @param scheme
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	public Connection get(String scheme, String host, int port) {
+		if (closed) {
+			throw new IllegalStateException("The connection pool is closed");
+		}
+		Origin origin = new Origin(scheme, host, port);
+		return origins.computeIfAbsent(origin, OriginConnections::new);
+	}
+
+	/**
+	 * Open the connections to an origin in parallel, up to the given number
+	 * and the maximum per origin, e.g. at startup
+	 * 
+	 * @param scheme
+	 * @param host
+	 * @param port
+	 * @param connections
+	 * @return a future completed once they are all open, or failed if any
+	 *         fails to open
+	 */
+	public CompletableFuture<Void> warmUp(String scheme, String host, int port, int connections) {
+		return ((OriginConnections) get(scheme, host, port)).warmUp(connections);
+	}
+
+	public Http2Request.Builder newRequestBuilder(String scheme, String host, int port) {
+		return new Http2Request.Builder(get(scheme, host, port));
+	}
+
+	/**
+	 * Get the number of the connections open to an origin and taking new
+	 * streams
+	 * 
+	 * @param scheme
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	public int size(String scheme, String host, int port) {
+		OriginConnections connections = origins.get(new Origin(scheme, host, port));
+		return connections == null ? 0 : connections.live.size();
+	}
+
+	private void scheduleReaping() {
+		long interval = Math.max(1000L, IDLE_TIMEOUT_SECONDS * 1000L / 2);
+		reaper.newTimeout(this::reap, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private void reap(Timeout timeout) {
+		if (closed) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (OriginConnections connections : origins.values()) {
+			connections.reap(now);
+		}
+		scheduleReaping();
+	}
+
+	/**
+	 * Close all the connections of the pool
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		reaper.stop();
+		for (OriginConnections connections : origins.values()) {
+			connections.close();
+		}
+		origins.clear();
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (Exception e) {
+			log("Failed to close the connection: " + e);
+		}
+	}
+
+	/**
+	 * The load of a connection: its active and waiting streams against the
+	 * limit of the peer, a connection allowing no stream at all is saturated
+	 * 
+	 * @param stats
+	 * @return
+	 */
+	private static double load(StreamAdmissionStats stats) {
+		if (stats.getMaxConcurrentStreams() <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return (double) (stats.getActiveStreams() + stats.getQueueDepth()) / stats.getMaxConcurrentStreams();
+	}
+
+	/**
+	 * The key of the connections
+	 */
+	private static final class Origin {
+
+		private final String scheme;
+		private final String host;
+		private final int port;
+
+		private Origin(String scheme, String host, int port) {
+			this.scheme = scheme.toLowerCase();
+			this.host = host.toLowerCase();
+			this.port = port;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Origin)) {
+				return false;
+			}
+			Origin other = (Origin) obj;
+			return port == other.port && scheme.equals(other.scheme) && host.equals(other.host);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(scheme, host, port);
+		}
+
+		@Override
+		public String toString() {
+			return scheme + "://" + host + ":" + port;
+		}
+
+	}
+
+	/**
+	 * A connection in the pool
+	 */
+	private static final class Entry {
+
+		private final Connection connection;
+		// When the connection was last found without any stream, or 0 if busy:
+		private long idleSince;
+
+		private Entry(Connection connection) {
+			this.connection = connection;
+		}
+
+	}
+
+	/**
+	 * The connections to an origin, seen as one connection. The frames sent
+	 * directly and the HPACK context belong to the least loaded connection
+	 * when they are called.
+	 */
+	private class OriginConnections implements Connection {
+
+		private final Origin origin;
+		private final List<Entry> live = new CopyOnWriteArrayList<>();
+		// The connections evicted but still serving their active streams:
+		private final List<Connection> draining = new CopyOnWriteArrayList<>();
+		// The last connection being opened, and the number of them:
+		private CompletableFuture<Connection> opening;
+		private int pendingOpens;
+		private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+		private OriginConnections(Origin origin) {
+			this.origin = origin;
+		}
+
+		/**
+		 * Pick the least loaded connection for a new stream, after evicting the
+		 * ones which can no longer take it. Another connection is opened in
+		 * the background if they are all saturated, or opened right away if
+		 * there is none, in which case the future is completed once it's open.
+		 * 
+		 * @return
+		 */
+		@Override
+		public CompletableFuture<Connection> selectConnection() {
+
+			CompletableFuture<Connection> pending;
+			synchronized (this) {
+
+				evict();
+
+				Entry best = null;
+				double bestLoad = Double.POSITIVE_INFINITY;
+				for (Entry entry : live) {
+					double load = load(entry.connection.admissionStats());
+					if (best == null || load < bestLoad) {
+						best = entry;
+						bestLoad = load;
+					}
+				}
+
+				if (pendingOpens == 0 && (best == null || bestLoad >= 1) && live.size() < MAX_CONNECTIONS) {
+					open();
+				}
+				if (best != null) {
+					best.idleSince = 0;
+					return CompletableFuture.completedFuture(best.connection);
+				}
+				if (opening == null) {
+					open();
+				}
+				pending = opening;
+
+			}
+
+			CompletableFuture<Connection> selected = new CompletableFuture<>();
+			pending.whenComplete((connection, e) -> {
+				if (e == null) {
+					selected.complete(adopt(connection));
+				} else {
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					selected.completeExceptionally(
+							new ConnectionException(ErrorCodeRegistry.UNKNOWN, "Failed to connect to " + origin, cause));
+				}
+			});
+			return selected;
+
+		}
+
+		private void evict() {
+			for (Entry entry : live) {
+				if (!entry.connection.acceptsNewStreams()) {
+					log("Evicting a connection to " + origin + " which no longer takes new streams");
+					retire(entry);
+				}
+			}
+		}
+
+		private void retire(Entry entry) {
+			Connection connection = entry.connection;
+			live.remove(entry);
+			draining.add(connection);
+			connection.shutdown().thenRun(() -> draining.remove(connection));
+		}
+
+		/**
+		 * Open the connections up to the given number in parallel
+		 * 
+		 * @param connections
+		 * @return a future completed once they are all open
+		 */
+		private synchronized CompletableFuture<Void> warmUp(int connections) {
+			evict();
+			List<CompletableFuture<Connection>> futures = new ArrayList<>();
+			while (live.size() + pendingOpens < Math.min(connections, MAX_CONNECTIONS)) {
+				futures.add(open());
+			}
+			return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+		}
+
+		/**
+		 * Open a connection in the background, it's added to the pool once the
+		 * peer has acknowledged the connection preface
+		 * 
+		 * @return
+		 */
+		private CompletableFuture<Connection> open() {
+			StartBy startBy = "https".equals(origin.scheme) ? StartBy.alpn : cleartextStartBy;
+			CompletableFuture<Connection> future = factory.createAsync(startBy, origin.host, origin.port);
+			opening = future;
+			pendingOpens++;
+			future.whenComplete((connection, e) -> opened(future, connection, e));
+			return future;
+		}
+
+		private synchronized void opened(CompletableFuture<Connection> future, Connection connection, Throwable e) {
+			pendingOpens--;
+			if (opening == future) {
+				opening = null;
+			}
+			if (e != null) {
+				log("Failed to open a connection to " + origin + ": " + e);
+			} else if (closed) {
+				closeQuietly(connection);
+			} else if (!draining.contains(connection)) {
+				entryOf(connection);
+			}
+		}
+
+		/**
+		 * Get the entry of a new connection, added once by whichever of the
+		 * opener and a waiting stream gets it first
+		 * 
+		 * @param connection
+		 * @return
+		 */
+		private Entry entryOf(Connection connection) {
+			for (Entry entry : live) {
+				if (entry.connection == connection) {
+					return entry;
+				}
+			}
+			Entry entry = new Entry(connection);
+			live.add(entry);
+			log("Opened connection #" + live.size() + " to " + origin);
+			return entry;
+		}
+
+		/**
+		 * Add a connection just opened for a waiting stream, unless it has been
+		 * evicted meanwhile
+		 * 
+		 * @param connection
+		 * @return
+		 */
+		private synchronized Connection adopt(Connection connection) {
+			if (!closed && !draining.contains(connection)) {
+				entryOf(connection).idleSince = 0;
+			}
+			return connection;
+		}
+
+		/**
+		 * Close the connections which have been without any stream for the idle
+		 * timeout
+		 * 
+		 * @param now
+		 */
+		private synchronized void reap(long now) {
+			evict();
+			for (Entry entry : live) {
+				StreamAdmissionStats stats = entry.connection.admissionStats();
+				if (stats.getActiveStreams() + stats.getQueueDepth() > 0) {
+					entry.idleSince = 0;
+				} else if (entry.idleSince == 0) {
+					entry.idleSince = now;
+				} else if (now - entry.idleSince >= TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS)) {
+					log("Closing an idle connection to " + origin);
+					retire(entry);
+				}
+			}
+		}
+
+		/**
+		 * Get any connection for the calls not bound to a new stream. It never
+		 * blocks: if none is open yet, one is opened in the background and the
+		 * call fails.
+		 * 
+		 * @return
+		 */
+		private Connection any() {
+			for (Entry entry : live) {
+				return entry.connection;
+			}
+			CompletableFuture<Connection> selected = selectConnection();
+			if (!selected.isDone()) {
+				throw new IllegalStateException("No connection to " + origin + " is open yet");
+			}
+			try {
+				return selected.join();
+			} catch (CompletionException e) {
+				throw new IllegalStateException("No connection to " + origin + " could be opened", e.getCause());
+			}
+		}
+
+		@Override
+		public void send(Frame frame) throws ConnectionException {
+			any().send(frame);
+		}
+
+		@Override
+		public void flush() {
+			for (Entry entry : live) {
+				entry.connection.flush();
+			}
+			for (Connection connection : draining) {
+				connection.flush();
+			}
+		}
+
+		@Override
+		public Stream getStream(int streamId) {
+			if (streamId == 0) {
+				return getConnectionStream();
+			}
+			Stream stream = findStream(streamId);
+			if (stream == null) {
+				throw new IllegalArgumentException("No stream " + streamId + " on the connections to " + origin);
+			}
+			return stream;
+		}
+
+		/**
+		 * Get the stream from the connection it was opened on. The connections
+		 * number their streams independently, so an identifier found on more
+		 * than one of them is ambiguous: the stream must be taken from its own
+		 * connection then.
+		 * 
+		 * @param streamId
+		 * @return
+		 */
+		@Override
+		public Stream findStream(int streamId) {
+			List<Connection> connections = new ArrayList<>(draining);
+			for (Entry entry : live) {
+				connections.add(entry.connection);
+			}
+			Stream found = null;
+			for (Connection connection : connections) {
+				Stream stream = connection.findStream(streamId);
+				if (stream != null) {
+					if (found != null) {
+						throw new IllegalStateException(
+								"Stream " + streamId + " is on more than one connection to " + origin);
+					}
+					found = stream;
+				}
+			}
+			return found;
+		}
+
+		@Override
+		public Stream getConnectionStream() {
+			return any().getConnectionStream();
+		}
+
+		@Override
+		public SettingsFrame settings(SettingsFrame settingsFrame) throws ConnectionException {
+			return any().settings(settingsFrame);
+		}
+
+		@Override
+		public PingFrame ping(PingFrame pingFrame) throws ConnectionException {
+			return any().ping(pingFrame);
+		}
+
+		@Override
+		public void goAway(ErrorCodeRegistry errorCode, String debugData) throws ConnectionException {
+			any().goAway(errorCode, debugData);
+		}
+
+		@Override
+		public void windowUpdate(int windowSizeIncrement) throws ConnectionException {
+			any().windowUpdate(windowSizeIncrement);
+		}
+
+		@Override
+		public Stream newStream() {
+			return any().newStream();
+		}
+
+		@Override
+		public boolean acceptsNewStreams() {
+			return !closed;
+		}
+
+		@Override
+		public int remainingStreamIds() {
+			return closed ? 0 : Integer.MAX_VALUE;
+		}
+
+		@Override
+		public CompletableFuture<Void> shutdown() {
+			List<CompletableFuture<Void>> closing = new ArrayList<>();
+			synchronized (this) {
+				for (Entry entry : live) {
+					retire(entry);
+				}
+				for (Connection connection : draining) {
+					closing.add(connection.shutdown());
+				}
+			}
+			return CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[0]));
+		}
+
+		@Override
+		public void whenDraining(int streamIdReserve, Runnable callback) {
+			// The pool replaces its connections itself, so it only stops taking
+			// new streams once closed:
+			drained.thenRun(callback);
+		}
+
+		@Override
+		public CompletableFuture<Void> admitStream() {
+			return selectConnection().thenCompose(Connection::admitStream);
+		}
+
+		@Override
+		public CompletableFuture<Stream> newStreamAsync() {
+			return selectConnection().thenCompose(Connection::newStreamAsync);
+		}
+
+		@Override
+		public StreamAdmissionStats admissionStats() {
+			return any().admissionStats();
+		}
+
+		@Override
+		public Http2Settings currentSettings() {
+			return any().currentSettings();
+		}
+
+		@Override
+		public Http2Headers decode(ByteBuf headerBlock) throws ConnectionException {
+			return any().decode(headerBlock);
+		}
+
+		@Override
+		public ByteBuf encode(Http2Headers headers) {
+			return any().encode(headers);
+		}
+
+		@Override
+		public GoAwayFrame closedByPeer() {
+			return any().closedByPeer();
+		}
+
+		@Override
+		public String getHost() {
+			return origin.host;
+		}
+
+		@Override
+		public int getPort() {
+			return origin.port;
+		}
+
+		@Override
+		public String getScheme() {
+			return origin.scheme;
+		}
+
+		@Override
+		public void close() {
+			CompletableFuture<Connection> pending;
+			synchronized (this) {
+				pending = opening;
+				opening = null;
+			}
+			drained.complete(null);
+			if (pending != null) {
+				pending.thenAccept(ConnectionPool::closeQuietly);
+			}
+			for (Entry entry : live) {
+				closeQuietly(entry.connection);
+			}
+			live.clear();
+			for (Connection connection : draining) {
+				closeQuietly(connection);
+			}
+		}
+
+	}
+
+}
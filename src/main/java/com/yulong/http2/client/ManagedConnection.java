@@ -0,0 +1,333 @@
+package com.yulong.http2.client;
+
+import static com.yulong.http2.client.utils.LogUtil.log;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import io.netty.buffer.ByteBuf;
+
+import com.yulong.http2.client.common.ErrorCodeRegistry;
+import com.yulong.http2.client.common.Http2Settings;
+import com.yulong.http2.client.common.StreamAdmissionStats;
+import com.yulong.http2.client.frame.Frame;
+import com.yulong.http2.client.frame.GoAwayFrame;
+import com.yulong.http2.client.frame.PingFrame;
+import com.yulong.http2.client.frame.SettingsFrame;
+import com.yulong.http2.client.message.Http2Headers;
+
+/**
+ * A connection which is replaced transparently when it can no longer take new
+ * streams: when a GOAWAY is received, or when the stream identifiers run low.
+ * The replacement is opened in the background as soon as the connection
+ * signals it, the new streams are routed to it once it's ready, and the old connection is closed once its active
+ * streams are done. The requests refused by the GOAWAY are retried on the new
+ * connection by Http2Request.
+ * <p>
+ * The frames sent directly and the HPACK context belong to the connection in
+ * use when they are called.
+ */
+public class ManagedConnection implements Connection {
+
+	// Start opening the replacement when fewer stream identifiers are left:
+	private static final int ROLLOVER_RESERVE = Integer.getInteger("http2.stream.id.reserve", 10000);
+	// Wait before opening another replacement after a failure, doubled on
+	// each failure in a row:
+	private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+	private final Connector connector;
+	private volatile Connection current;
+	private CompletableFuture<Connection> replacement;
+	// The connections replaced but still serving their active streams:
+	private final List<Connection> retired = new CopyOnWriteArrayList<>();
+	private volatile boolean closed;
+	private final CompletableFuture<Void> drained = new CompletableFuture<>();
+	private long retryDelayMillis;
+	private long retryAt;
+
+	public ManagedConnection(Connector connector) throws Http2StartingException {
+		this.connector = connector;
+		try {
+			this.current = connector.connect().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Http2StartingException("Interrupted while connecting", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Http2StartingException) {
+				throw (Http2StartingException) e.getCause();
+			}
+			throw new Http2StartingException("Failed to connect", e.getCause());
+		}
+		watch(current);
+	}
+
+	/**
+	 * Open the replacement as soon as the connection is about to stop taking
+	 * new streams, rather than on the next new stream
+	 * 
+	 * @param connection
+	 */
+	private void watch(Connection connection) {
+		connection.whenDraining(ROLLOVER_RESERVE, () -> {
+			if (this.current == connection) {
+				current();
+			}
+		});
+	}
+
+	/**
+	 * Get the connection the new streams are routed to, rolling over to the
+	 * replacement if it's ready. It never blocks, as it's also called in the
+	 * event loop, e.g. to retry the requests refused by a GOAWAY.
+	 * 
+	 * @return
+	 */
+	private synchronized Connection current() {
+		if (closed) {
+			return current;
+		}
+		if (replacement == null && (!current.acceptsNewStreams() || current.remainingStreamIds() < ROLLOVER_RESERVE)
+				&& System.currentTimeMillis() >= retryAt) {
+			CompletableFuture<Connection> opening = connector.connect();
+			replacement = opening;
+			// Roll over once it's open, rather than on the next new stream:
+			opening.whenComplete((next, e) -> current());
+		}
+		if (replacement != null && replacement.isDone()) {
+			Connection next = null;
+			try {
+				next = replacement.join();
+				retryDelayMillis = 0;
+			} catch (CompletionException | CancellationException e) {
+				// The streams on the old connection fail, and are retried later:
+				retryDelayMillis = Math.min(Math.max(MIN_RETRY_DELAY_MILLIS, retryDelayMillis * 2),
+						MAX_RETRY_DELAY_MILLIS);
+				retryAt = System.currentTimeMillis() + retryDelayMillis;
+				log("Failed to open a new connection, retrying in " + retryDelayMillis + " ms: " + e.getCause());
+			}
+			replacement = null;
+			if (next != null) {
+				Connection old = current;
+				log("Rolling over to a new connection, " + old.remainingStreamIds() + " stream IDs left");
+				retired.add(old);
+				old.shutdown().thenRun(() -> retired.remove(old));
+				current = next;
+				watch(next);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Get the connection for a new stream, or the replacement being opened
+	 * once it's ready if the current one no longer takes new streams
+	 * 
+	 * @return
+	 */
+	@Override
+	public CompletableFuture<Connection> selectConnection() {
+		CompletableFuture<Connection> pending;
+		synchronized (this) {
+			Connection active = current();
+			if (closed || active.acceptsNewStreams()) {
+				return CompletableFuture.completedFuture(active);
+			}
+			pending = replacement;
+		}
+		if (pending == null) {
+			CompletableFuture<Connection> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new ConnectionException(ErrorCodeRegistry.UNKNOWN,
+					"The connection no longer takes new streams, and no new connection could be opened"));
+			return failed;
+		}
+		return pending.handle((next, e) -> null).thenCompose(opened -> selectConnection());
+	}
+
+	/**
+	 * Get the connection currently taking the new streams
+	 * 
+	 * @return
+	 */
+	public Connection getCurrent() {
+		return current;
+	}
+
+	@Override
+	public void send(Frame frame) throws ConnectionException {
+		current.send(frame);
+	}
+
+	@Override
+	public void flush() {
+		current.flush();
+		for (Connection connection : retired) {
+			connection.flush();
+		}
+	}
+
+	@Override
+	public Stream getStream(int streamId) {
+		return current.getStream(streamId);
+	}
+
+	@Override
+	public Stream findStream(int streamId) {
+		Stream stream = current.findStream(streamId);
+		if (stream != null) {
+			return stream;
+		}
+		for (Connection connection : retired) {
+			stream = connection.findStream(streamId);
+			if (stream != null) {
+				return stream;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Stream getConnectionStream() {
+		return current.getConnectionStream();
+	}
+
+	@Override
+	public SettingsFrame settings(SettingsFrame settingsFrame) throws ConnectionException {
+		return current.settings(settingsFrame);
+	}
+
+	@Override
+	public PingFrame ping(PingFrame pingFrame) throws ConnectionException {
+		return current.ping(pingFrame);
+	}
+
+	@Override
+	public void goAway(ErrorCodeRegistry errorCode, String debugData) throws ConnectionException {
+		current.goAway(errorCode, debugData);
+	}
+
+	@Override
+	public void windowUpdate(int windowSizeIncrement) throws ConnectionException {
+		current.windowUpdate(windowSizeIncrement);
+	}
+
+	@Override
+	public Stream newStream() {
+		return current().newStream();
+	}
+
+	@Override
+	public CompletableFuture<Void> admitStream() {
+		return selectConnection().thenCompose(Connection::admitStream);
+	}
+
+	@Override
+	public CompletableFuture<Stream> newStreamAsync() {
+		return selectConnection().thenCompose(Connection::newStreamAsync);
+	}
+
+	@Override
+	public StreamAdmissionStats admissionStats() {
+		return current.admissionStats();
+	}
+
+	@Override
+	public boolean acceptsNewStreams() {
+		return !closed;
+	}
+
+	@Override
+	public int remainingStreamIds() {
+		return closed ? 0 : Integer.MAX_VALUE;
+	}
+
+	@Override
+	public CompletableFuture<Void> shutdown() {
+		closed = true;
+		drained.complete(null);
+		return current.shutdown();
+	}
+
+	@Override
+	public void whenDraining(int streamIdReserve, Runnable callback) {
+		// The connections behind it are replaced, so it only stops taking new
+		// streams once shut down or closed:
+		drained.thenRun(callback);
+	}
+
+	@Override
+	public Http2Settings currentSettings() {
+		return current.currentSettings();
+	}
+
+	@Override
+	public Http2Headers decode(ByteBuf headerBlock) throws ConnectionException {
+		return current.decode(headerBlock);
+	}
+
+	@Override
+	public ByteBuf encode(Http2Headers headers) {
+		return current.encode(headers);
+	}
+
+	@Override
+	public GoAwayFrame closedByPeer() {
+		return current.closedByPeer();
+	}
+
+	@Override
+	public String getHost() {
+		return current.getHost();
+	}
+
+	@Override
+	public int getPort() {
+		return current.getPort();
+	}
+
+	@Override
+	public String getScheme() {
+		return current.getScheme();
+	}
+
+	@Override
+	public void close() {
+		CompletableFuture<Connection> pending;
+		synchronized (this) {
+			closed = true;
+			pending = replacement;
+			replacement = null;
+		}
+		drained.complete(null);
+		if (pending != null) {
+			pending.thenAccept(Connection::shutdown);
+		}
+		for (Connection connection : retired) {
+			closeQuietly(connection);
+		}
+		closeQuietly(current);
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (Exception e) {
+			log("Failed to close the connection: " + e);
+		}
+	}
+
+	/**
+	 * Open the connections, the first one and its replacements
+	 */
+	@FunctionalInterface
+	public static interface Connector {
+
+		CompletableFuture<Connection> connect();
+
+	}
+
+}
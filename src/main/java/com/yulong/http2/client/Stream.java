@@ -3,7 +3,8 @@ package com.yulong.http2.client;
 import java.io.Closeable;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import com.yulong.http2.client.common.ErrorCodeRegistry;
@@ -24,6 +25,24 @@ public interface Stream extends Closeable {
 		IDLE, RESERVED_LOCAL, RESERVED_REMOTE, OPEN, HALF_CLOSED_LOCAL, HALF_CLOSED_REMOTE, CLOSED, RESET_LOCAL, RESET_REMOTE;
 	}
 
+	/**
+	 * Listen to the state changes of a stream, e.g. to follow its lifecycle or
+	 * to collect metrics. It's called on the thread changing the state, which
+	 * is often the event loop of the connection, so it must not block.
+	 */
+	public static interface StateListener {
+
+		/**
+		 * Called once the stream has moved to a new state
+		 * 
+		 * @param stream
+		 * @param oldState
+		 * @param newState
+		 */
+		public void onStateChange(Stream stream, State oldState, State newState);
+
+	}
+
 	/**
 	 * Send a HEADERS frame on the stream
 	 * 
@@ -49,12 +68,15 @@ public interface Stream extends Closeable {
 	public void continuation(ContinuationFrame continuationFrame) throws ConnectionException;
 
 	/**
-	 * Send a DATA frame on the stream
+	 * Send a DATA frame on the stream without waiting for the flow-control
+	 * windows. The frames sent afterwards on the stream, e.g. the trailers,
+	 * must wait for the future so as not to overtake it.
 	 * 
 	 * @param dataFrame
+	 * @return a future completed once the whole frame is written
 	 * @throws ConnectionException
 	 */
-	public void data(DataFrame dataFrame) throws ConnectionException;
+	public CompletableFuture<Void> data(DataFrame dataFrame) throws ConnectionException;
 
 	/**
 	 * Send a RST_STREAM frame on the stream
@@ -114,12 +136,13 @@ public interface Stream extends Closeable {
 	public State getState();
 
 	/**
-	 * Get a future instance of Http2Response of the stream. It's useful when
-	 * you'd like to get the response of the stream
+	 * Get a future instance of Http2Response of the stream. It's completed when
+	 * the response ends, or completed exceptionally when the stream is reset.
+	 * Cancelling it resets the stream with CANCEL.
 	 * 
 	 * @return
 	 */
-	public Future<Http2Response> getResponseFuture();
+	public CompletableFuture<Http2Response> getResponseFuture();
 
 	/**
 	 * Get the response of the stream in a blocking way.
@@ -128,6 +151,16 @@ public interface Stream extends Closeable {
 	 */
 	public Http2Response getResponse() throws ConnectionException;
 
+	/**
+	 * Get the response of the stream in a blocking way, waiting at most the
+	 * given time. Once it's reached, the stream is reset with CANCEL.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return Http2Response
+	 */
+	public Http2Response getResponse(long timeout, TimeUnit unit) throws ConnectionException;
+
 	/**
 	 * If this stream is reset by peer, return the received RST_STREAM frame
 	 * 
@@ -162,4 +195,11 @@ public interface Stream extends Closeable {
 	 */
 	public void addDefaultDataFrameConsumer();
 
+	/**
+	 * Add a listener which will be called on every change of the stream state
+	 * 
+	 * @param listener
+	 */
+	public void addStateListener(StateListener listener);
+
 }
@@ -3,12 +3,10 @@ package com.yulong.http2.client.common;
 import static com.yulong.http2.client.utils.Debug.debugFlowControl;
 import static com.yulong.http2.client.utils.LogUtil.log;
 
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
 /**
- * The window used for flow control
+ * The window used for flow control. It never blocks: the DATA frames that do
+ * not fit are queued by their stream and sent when the window grows. It's
+ * only accessed in the event loop of the connection.
  */
 public class FlowControlWindow {
 
@@ -16,35 +14,23 @@ public class FlowControlWindow {
 	private long availableSize;
 	private int initialSize;
 
-	private final Lock lock = new ReentrantLock();
-	private final Condition availableCondition = lock.newCondition();
-
 	public FlowControlWindow(int streamId, int initialSize) {
 		this.streamId = streamId;
 		this.availableSize = this.initialSize = initialSize;
 	}
 
 	/**
-	 * Wait until the available size is larger or equal to the specified size
+	 * Get the available size, which is negative if the window has been shrunk
+	 * by a SETTINGS frame below what was already sent
 	 * 
-	 * @param requiredMinSize the required minimal size
 	 * @return
 	 */
-	public int availableSize(int requiredMinSize) {
-		debugFlowControl(this, "before checking availability");
-		lock.lock();
-		while (availableSize < requiredMinSize) {
-			debugFlowControl(this, "wait until available size larger than " + requiredMinSize);
-			availableCondition.awaitUninterruptibly();
-		}
-		debugFlowControl(this, "before sending");
+	public int availableSize() {
 		return (int) availableSize;
-
 	}
 
 	public void consume(int size) {
 		this.availableSize -= size;
-		lock.unlock();
 		debugFlowControl(this, "after sent");
 	}
 
@@ -57,20 +43,13 @@ public class FlowControlWindow {
 	 */
 	public boolean increment(int delta) {
 		debugFlowControl(this, "before window increment");
-		boolean success = true;
-		lock.lock();
-		try {
-			availableSize += delta;
-			if (availableSize > Integer.MAX_VALUE) {
-				log("The window size (" + availableSize + ") exceeds the max value");
-				success = false;
-			}
-			availableCondition.signal();
-		} finally {
-			lock.unlock();
+		availableSize += delta;
+		if (availableSize > Integer.MAX_VALUE) {
+			log("The window size (" + availableSize + ") exceeds the max value");
+			return false;
 		}
 		debugFlowControl(this, "after window increment");
-		return success;
+		return true;
 	}
 
 	/**
@@ -78,13 +57,13 @@ public class FlowControlWindow {
 	 * received and contains INITIAL_WINDOW_SIZE
 	 * 
 	 * @param newSize
+	 * @return boolean true for success and false for failure
 	 */
-	public void resize(int newSize) {
+	public boolean resize(int newSize) {
 		debugFlowControl(this, "before resize");
-		int delta = newSize - (initialSize - (int) availableSize);
-		increment(delta);
+		int delta = newSize - this.initialSize;
 		this.initialSize = newSize;
-		debugFlowControl(this, "after resize");
+		return increment(delta);
 	}
 
 	@Override
@@ -0,0 +1,71 @@
+package com.yulong.http2.client.common;
+
+import static com.yulong.http2.client.utils.Debug.debugFlowControl;
+
+/**
+ * The window used for flow control of the received DATA. The consumed bytes
+ * are given back to the peer in batches: a WINDOW_UPDATE is only worth sending
+ * once the given ratio of the window has been consumed. It's only accessed in
+ * the event loop of the connection.
+ */
+public class ReceiveWindow {
+
+	private final int streamId;
+	private final float updateRatio;
+	private int size;
+	private int unacknowledged;
+
+	/**
+	 * @param streamId
+	 * @param size the window size the peer knows of
+	 * @param updateRatio the ratio of the window consumed before a
+	 *            WINDOW_UPDATE is sent, 0 to send one for every DATA frame
+	 */
+	public ReceiveWindow(int streamId, int size, float updateRatio) {
+		this.streamId = streamId;
+		this.size = size;
+		this.updateRatio = updateRatio;
+	}
+
+	/**
+	 * Record the bytes of a received DATA frame, padding included
+	 * 
+	 * @param length
+	 * @return the increment to send in a WINDOW_UPDATE frame, or 0 if none is
+	 *         due yet
+	 */
+	public int consume(int length) {
+		unacknowledged += length;
+		debugFlowControl(this, "after received");
+		if (unacknowledged < updateRatio * size) {
+			return 0;
+		}
+		int increment = unacknowledged;
+		unacknowledged = 0;
+		return increment;
+	}
+
+	/**
+	 * Change the window size when our SETTINGS_INITIAL_WINDOW_SIZE is
+	 * acknowledged
+	 * 
+	 * @param newSize
+	 */
+	public void resize(int newSize) {
+		size = newSize;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Receive Window [").append(streamId);
+		sb.append("] size=").append(size);
+		sb.append("; unacknowledged=").append(unacknowledged);
+		return sb.toString();
+	}
+
+}
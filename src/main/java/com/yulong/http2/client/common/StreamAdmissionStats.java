@@ -0,0 +1,86 @@
+package com.yulong.http2.client.common;
+
+/**
+ * A snapshot of the admission of the new streams of a connection, limited by
+ * the SETTINGS_MAX_CONCURRENT_STREAMS of the peer
+ */
+public class StreamAdmissionStats {
+
+	private final int maxConcurrentStreams;
+	private final int activeStreams;
+	private final int queueDepth;
+	private final int maxQueueDepth;
+	private final long admitted;
+	private final long queued;
+	private final long totalWaitNanos;
+	private final long maxWaitNanos;
+
+	public StreamAdmissionStats(int maxConcurrentStreams, int activeStreams, int queueDepth, int maxQueueDepth,
+			long admitted, long queued, long totalWaitNanos, long maxWaitNanos) {
+		this.maxConcurrentStreams = maxConcurrentStreams;
+		this.activeStreams = activeStreams;
+		this.queueDepth = queueDepth;
+		this.maxQueueDepth = maxQueueDepth;
+		this.admitted = admitted;
+		this.queued = queued;
+		this.totalWaitNanos = totalWaitNanos;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	public int getMaxConcurrentStreams() {
+		return maxConcurrentStreams;
+	}
+
+	public int getActiveStreams() {
+		return activeStreams;
+	}
+
+	/**
+	 * Get the number of the requests waiting for a stream
+	 * 
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public long getAdmitted() {
+		return admitted;
+	}
+
+	/**
+	 * Get the number of the requests which have had to wait
+	 * 
+	 * @return
+	 */
+	public long getQueued() {
+		return queued;
+	}
+
+	public long getTotalWaitNanos() {
+		return totalWaitNanos;
+	}
+
+	public long getMaxWaitNanos() {
+		return maxWaitNanos;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Stream Admission [maxConcurrentStreams=").append(maxConcurrentStreams);
+		sb.append("; active=").append(activeStreams);
+		sb.append("; queueDepth=").append(queueDepth);
+		sb.append("; maxQueueDepth=").append(maxQueueDepth);
+		sb.append("; admitted=").append(admitted);
+		sb.append("; queued=").append(queued);
+		sb.append("; totalWaitMillis=").append(totalWaitNanos / 1000000);
+		sb.append("; maxWaitMillis=").append(maxWaitNanos / 1000000).append("]");
+		return sb.toString();
+	}
+
+}
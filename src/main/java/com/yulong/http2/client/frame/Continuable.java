@@ -1,9 +1,13 @@
 package com.yulong.http2.client.frame;
 
+import io.netty.buffer.ByteBuf;
+
 public interface Continuable {
 
 	public boolean isEndHeaders();
 
 	public byte[] getHeaderBlockFragment();
 
+	public ByteBuf getHeaderBlockFragmentBuffer();
+
 }
@@ -3,10 +3,15 @@ package com.yulong.http2.client.frame;
 import static com.yulong.http2.client.utils.Utils.showPartOfTextIfTooLong;
 import static com.yulong.http2.client.utils.Utils.toHexString;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
 public class ContinuationFrame extends Frame implements Continuable {
 
 	private final boolean endHeaders;
-	private final byte[] headerBlockFragment;
+	private byte[] headerBlockFragment;
+	private ByteBuf headerBlockFragmentBuffer;
 
 	public ContinuationFrame(int streamId, boolean endHeaders, final byte[] headerBlockFragment) {
 
@@ -18,12 +23,30 @@ public class ContinuationFrame extends Frame implements Continuable {
 		init(headerBlockFragment.length, FrameType.CONTINUATION, flags, streamId, headerBlockFragment);
 	}
 
+	/**
+	 * Create a CONTINUATION frame whose payload is the given buffer, no copy is
+	 * made.
+	 * 
+	 * @param streamId
+	 * @param endHeaders
+	 * @param headerBlockFragment
+	 */
+	public ContinuationFrame(int streamId, boolean endHeaders, final ByteBuf headerBlockFragment) {
+
+		this.endHeaders = endHeaders;
+		this.headerBlockFragmentBuffer = headerBlockFragment;
+
+		byte flags = (byte) (this.endHeaders ? 0x4 : 0x0);
+
+		init(headerBlockFragment.readableBytes(), FrameType.CONTINUATION, flags, streamId, headerBlockFragment);
+	}
+
 	public ContinuationFrame(final Frame rawFrame) {
 
 		copyFrom(rawFrame);
 
-		this.endHeaders = (rawFrame.getFlags() & 0x4) == 0x4;
-		this.headerBlockFragment = rawFrame.getPayload();
+		this.endHeaders = (getFlags() & 0x4) == 0x4;
+		this.headerBlockFragmentBuffer = content();
 
 	}
 
@@ -34,9 +57,20 @@ public class ContinuationFrame extends Frame implements Continuable {
 
 	@Override
 	public byte[] getHeaderBlockFragment() {
+		if (headerBlockFragment == null) {
+			headerBlockFragment = ByteBufUtil.getBytes(headerBlockFragmentBuffer);
+		}
 		return headerBlockFragment;
 	}
 
+	@Override
+	public ByteBuf getHeaderBlockFragmentBuffer() {
+		if (headerBlockFragmentBuffer == null) {
+			headerBlockFragmentBuffer = Unpooled.wrappedBuffer(headerBlockFragment);
+		}
+		return headerBlockFragmentBuffer;
+	}
+
 	@Override
 	public String describeFlags() {
 		return "END_HEADERS=" + this.endHeaders;
@@ -44,7 +78,7 @@ public class ContinuationFrame extends Frame implements Continuable {
 
 	@Override
 	public String describePayload() {
-		return "Header-Block-Fragment=" + showPartOfTextIfTooLong(toHexString(this.headerBlockFragment));
+		return "Header-Block-Fragment=" + showPartOfTextIfTooLong(toHexString(getHeaderBlockFragment()));
 	}
 
 }
@@ -4,8 +4,9 @@ import static com.yulong.http2.client.frame.FrameType.DATA;
 import static com.yulong.http2.client.utils.Utils.combine;
 import static com.yulong.http2.client.utils.Utils.createBinaryData;
 
-import java.nio.ByteBuffer;
-
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import com.yulong.http2.client.utils.Utils;
 
 public final class DataFrame extends Frame implements Padded {
@@ -13,13 +14,37 @@ public final class DataFrame extends Frame implements Padded {
 	private final boolean endStream;
 	private final boolean padded;
 	private final int padLength;
-	private final byte[] data;
-	private final byte[] padding;
+	private byte[] data;
+	private byte[] padding;
+
+	// Views over the received payload, the arrays above are created on demand:
+	private ByteBuf dataBuffer;
+	private ByteBuf paddingBuffer;
 
 	public DataFrame(int streamId, boolean endStream, final byte[] data) {
 		this(streamId, endStream, false, data, -1);
 	}
 
+	/**
+	 * Create a DATA frame whose payload is the given buffer, no copy is made.
+	 * 
+	 * @param streamId
+	 * @param endStream
+	 * @param data
+	 */
+	public DataFrame(int streamId, boolean endStream, final ByteBuf data) {
+
+		this.dataBuffer = data;
+		this.endStream = endStream;
+		this.padded = false;
+		this.padLength = -1;
+		this.padding = new byte[0];
+
+		byte flags = (byte) (endStream ? 0x1 : 0x0);
+
+		init(data.readableBytes(), DATA, flags, streamId, data);
+	}
+
 	public DataFrame(int streamId, boolean endStream, boolean padded, final byte[] data, int padLength) {
 
 		this.data = data;
@@ -48,27 +73,23 @@ public final class DataFrame extends Frame implements Padded {
 		this.endStream = ((getFlags() & 0x1) == 0x1);
 		this.padded = ((getFlags() & 0x8) == 0x8);
 
-		ByteBuffer byteBuff = ByteBuffer.wrap(getPayload());
+		ByteBuf content = content();
 		if (this.padded) {
 
-			this.padLength = byteBuff.get();
+			this.padLength = content.getUnsignedByte(content.readerIndex());
 			int actualDataLength = getPayloadLength() - this.padLength - 1;
-			this.data = new byte[actualDataLength];
-			byteBuff.get(this.data);
-
-			this.padding = new byte[padLength];
-			if (padLength != 0) {
-				byteBuff.get(this.padding);
+			if (actualDataLength < 0) {
+				// An invalid pad length which will be rejected by the connection:
+				this.dataBuffer = this.paddingBuffer = Unpooled.EMPTY_BUFFER;
+			} else {
+				this.dataBuffer = content.slice(content.readerIndex() + 1, actualDataLength);
+				this.paddingBuffer = content.slice(content.readerIndex() + 1 + actualDataLength, padLength);
 			}
 
 		} else {
 			this.padLength = -1;
-
-			int payloadLength = getPayloadLength();
-			this.data = new byte[payloadLength];
-			byteBuff.get(this.data);
-
-			this.padding = new byte[0];
+			this.dataBuffer = content;
+			this.paddingBuffer = Unpooled.EMPTY_BUFFER;
 		}
 
 	}
@@ -111,11 +132,30 @@ public final class DataFrame extends Frame implements Padded {
 	}
 
 	public byte[] getData() {
+		if (data == null) {
+			data = ByteBufUtil.getBytes(dataBuffer);
+		}
 		return data;
 	}
 
+	/**
+	 * The data as a buffer without copying. For a received frame, it's only
+	 * valid until the frame is released.
+	 * 
+	 * @return
+	 */
+	public ByteBuf getDataBuffer() {
+		if (dataBuffer == null) {
+			dataBuffer = Unpooled.wrappedBuffer(data);
+		}
+		return dataBuffer;
+	}
+
 	@Override
 	public byte[] getPadding() {
+		if (padding == null) {
+			padding = ByteBufUtil.getBytes(paddingBuffer);
+		}
 		return padding;
 	}
 
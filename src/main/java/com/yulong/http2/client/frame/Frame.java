@@ -7,6 +7,9 @@ import static com.yulong.http2.client.utils.Utils.toInt;
 
 import java.nio.ByteBuffer;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import com.yulong.http2.client.ConnectionException;
 import com.yulong.http2.client.common.ErrorCodeRegistry;
 
@@ -21,6 +24,10 @@ public class Frame {
 	private byte[] _payload;
 	private byte[] _rawData;
 
+	// A view over the inbound buffer, only set for frames decoded without copying:
+	private ByteBuf _content;
+	private boolean _released;
+
 	private byte[] header = null;
 
 	public Frame() {
@@ -52,9 +59,41 @@ public class Frame {
 		rawDataBuff.get(_payload);
 	}
 
+	/**
+	 * Create a frame whose payload is a view over a (retained) slice of the
+	 * inbound buffer. The frame takes the ownership of the given buffer which
+	 * is released by {@link #release()}.
+	 * 
+	 * @param payloadLength
+	 * @param type
+	 * @param flags
+	 * @param streamId
+	 * @param content
+	 */
+	public Frame(int payloadLength, FrameType type, byte flags, int streamId, ByteBuf content) {
+		this._payloadLength = payloadLength;
+		this._type = type;
+		this._flags = flags;
+		this._streamId = streamId;
+		this._content = content;
+	}
+
+	/**
+	 * Take over the fields of the given raw frame. The payload is not copied,
+	 * if the raw frame is backed by a buffer, the buffer is handed over to this
+	 * frame.
+	 * 
+	 * @param another
+	 */
 	protected void copyFrom(Frame another) {
-		init(another.getPayloadLength(), another.getType(), another.getFlags(), another.getStreamId(),
-				another.getPayload());
+		this._payloadLength = another._payloadLength;
+		this._type = another._type;
+		this._flags = another._flags;
+		this._streamId = another._streamId;
+		this._payload = another._payload;
+		this._rawData = another._rawData;
+		this._content = another._content;
+		another._content = null;
 	}
 
 	protected void init(int payloadLength, FrameType type, byte flags, int streamId, byte[] payload) {
@@ -63,8 +102,14 @@ public class Frame {
 		this._flags = flags;
 		this._streamId = streamId;
 		this._payload = payload;
+	}
 
-		_rawData = combine(getHeader(), this._payload);
+	protected void init(int payloadLength, FrameType type, byte flags, int streamId, ByteBuf content) {
+		this._payloadLength = payloadLength;
+		this._type = type;
+		this._flags = flags;
+		this._streamId = streamId;
+		this._content = content;
 	}
 
 	@Override
@@ -74,7 +119,7 @@ public class Frame {
 		sb.append("Length: ").append(getPayloadLength()).append(", ");
 		sb.append("Flags: (").append(describeFlags()).append("), ");
 		sb.append("Stream-ID: ").append(getStreamId()).append(", ");
-		sb.append("Payload: (").append(describePayload()).append(")");
+		sb.append("Payload: (").append(isReleased() ? "released" : describePayload()).append(")");
 		sb.append("]");
 		return sb.toString();
 	}
@@ -116,14 +161,66 @@ public class Frame {
 		}
 	}
 
+	/**
+	 * Write the 9-octet frame header to the given buffer
+	 * 
+	 * @param out
+	 */
+	public void writeHeader(ByteBuf out) {
+		out.writeMedium(_payloadLength);
+		out.writeByte(_type.getCode());
+		out.writeByte(_flags);
+		out.writeInt(_streamId);
+	}
+
 	public byte[] getPayload() {
+		if (_payload == null && _content != null) {
+			_payload = ByteBufUtil.getBytes(_content);
+		}
 		return _payload;
 	}
 
+	/**
+	 * The payload as a buffer. For a frame decoded without copying, it's a
+	 * view over the inbound buffer and is valid until the frame is released.
+	 * 
+	 * @return
+	 */
+	public ByteBuf content() {
+		if (_content != null) {
+			return _content;
+		}
+		return Unpooled.wrappedBuffer(getPayload());
+	}
+
 	public byte[] asBytes() {
+		if (_rawData == null) {
+			_rawData = combine(getHeader(), getPayload());
+		}
 		return _rawData;
 	}
 
+	/**
+	 * Release the inbound buffer backing this frame if any. The payload is
+	 * no longer accessible after that unless it has been read before.
+	 */
+	public void release() {
+		if (_content != null) {
+			_content.release();
+			_content = null;
+			_released = true;
+		}
+	}
+
+	/**
+	 * If the inbound buffer has been released and the payload was never read
+	 * 
+	 * @return
+	 */
+	public boolean isReleased() {
+		return _released && _payload == null;
+	}
+
 	@SuppressWarnings("unchecked")
 	public final <T extends Frame> T as(Class<T> clazz) {
 		return (T) this;
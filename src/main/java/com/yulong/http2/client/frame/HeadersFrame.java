@@ -6,7 +6,9 @@ import static com.yulong.http2.client.utils.Utils.createBinaryData;
 import static com.yulong.http2.client.utils.Utils.showPartOfTextIfTooLong;
 import static com.yulong.http2.client.utils.Utils.toHexString;
 
-import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 
 public class HeadersFrame extends Frame implements Continuable, Padded {
 
@@ -19,8 +21,12 @@ public class HeadersFrame extends Frame implements Continuable, Padded {
 	// Payload:
 	private final int padLength;
 	private final PriorityFrame priorityFrame;
-	private final byte[] headerBlockFragment;
-	private final byte[] padding;
+	private byte[] headerBlockFragment;
+	private byte[] padding;
+
+	// Views over the received payload, the arrays above are created on demand:
+	private ByteBuf headerBlockFragmentBuffer;
+	private ByteBuf paddingBuffer;
 
 	public HeadersFrame(int streamId, boolean endStream, boolean endHeaders, boolean padded, int padLength,
 			final PriorityFrame priorityFrame, final byte[] headerBlockFragment) {
@@ -80,6 +86,33 @@ public class HeadersFrame extends Frame implements Continuable, Padded {
 		this(streamId, endStream, endHeaders, null, headerBlockFragment);
 	}
 
+	/**
+	 * Create a HEADERS frame without padding nor priority whose payload is the
+	 * given buffer, no copy is made.
+	 * 
+	 * @param streamId
+	 * @param endStream
+	 * @param endHeaders
+	 * @param headerBlockFragment
+	 */
+	public HeadersFrame(int streamId, boolean endStream, boolean endHeaders, final ByteBuf headerBlockFragment) {
+
+		this.endStream = endStream;
+		this.endHeaders = endHeaders;
+		this.padded = false;
+		this.priority = false;
+
+		this.padLength = -1;
+		this.priorityFrame = null;
+		this.headerBlockFragmentBuffer = headerBlockFragment;
+		this.padding = new byte[0];
+
+		byte flags = (byte) ((endStream ? 0x1 : 0x0) | (endHeaders ? 0x4 : 0x0));
+
+		init(headerBlockFragment.readableBytes(), HEADERS, flags, streamId, headerBlockFragment);
+
+	}
+
 	public HeadersFrame(final Frame rawFrame) {
 
 		copyFrom(rawFrame);
@@ -89,30 +122,35 @@ public class HeadersFrame extends Frame implements Continuable, Padded {
 		this.padded = (getFlags() & 0x8) == 0x8;
 		this.priority = (getFlags() & 0x20) == 0x20;
 
-		ByteBuffer payloadBuff = ByteBuffer.wrap(getPayload());
+		ByteBuf content = content();
+		int offset = content.readerIndex();
 
 		if (this.padded) {
-			this.padLength = payloadBuff.get();
+			this.padLength = content.getUnsignedByte(offset++);
 		} else {
 			this.padLength = -1;
 		}
 
 		if (this.priority) {
 			byte[] priorityPayload = new byte[5];
-			payloadBuff.get(priorityPayload);
+			content.getBytes(offset, priorityPayload);
+			offset += 5;
 			this.priorityFrame = new PriorityFrame(getStreamId(), priorityPayload);
 		} else {
 			this.priorityFrame = null;
 		}
 
-		this.headerBlockFragment = new byte[getPayloadLength() - this.padLength - 1 - (this.priority ? 5 : 0)];
-		payloadBuff.get(this.headerBlockFragment);
-
-		if (this.padLength > 0) {
-			this.padding = new byte[this.padLength];
-			payloadBuff.get(this.padding);
+		int fragmentLength = getPayloadLength() - this.padLength - 1 - (this.priority ? 5 : 0);
+		if (fragmentLength < 0) {
+			// An invalid pad length which will be rejected by the connection:
+			this.headerBlockFragmentBuffer = this.paddingBuffer = Unpooled.EMPTY_BUFFER;
 		} else {
-			this.padding = new byte[0];
+			this.headerBlockFragmentBuffer = content.slice(offset, fragmentLength);
+			if (this.padLength > 0) {
+				this.paddingBuffer = content.slice(offset + fragmentLength, this.padLength);
+			} else {
+				this.paddingBuffer = Unpooled.EMPTY_BUFFER;
+			}
 		}
 
 	}
@@ -182,11 +220,25 @@ public class HeadersFrame extends Frame implements Continuable, Padded {
 
 	@Override
 	public byte[] getHeaderBlockFragment() {
+		if (headerBlockFragment == null) {
+			headerBlockFragment = ByteBufUtil.getBytes(headerBlockFragmentBuffer);
+		}
 		return headerBlockFragment;
 	}
 
+	@Override
+	public ByteBuf getHeaderBlockFragmentBuffer() {
+		if (headerBlockFragmentBuffer == null) {
+			headerBlockFragmentBuffer = Unpooled.wrappedBuffer(headerBlockFragment);
+		}
+		return headerBlockFragmentBuffer;
+	}
+
 	@Override
 	public byte[] getPadding() {
+		if (padding == null) {
+			padding = ByteBufUtil.getBytes(paddingBuffer);
+		}
 		return padding;
 	}
 
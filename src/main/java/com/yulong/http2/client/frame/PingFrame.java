@@ -34,8 +34,8 @@ public class PingFrame extends Frame {
 
 	public PingFrame(Frame rawFrame) {
 		copyFrom(rawFrame);
-		this.ack = (rawFrame.getFlags() & 0x1) == 0x1;
-		this.opaqueData = rawFrame.getPayload();
+		this.ack = (getFlags() & 0x1) == 0x1;
+		this.opaqueData = getPayload();
 	}
 
 	public boolean isAck() {
@@ -7,7 +7,9 @@ import static com.yulong.http2.client.utils.Utils.fromInt;
 import static com.yulong.http2.client.utils.Utils.showPartOfTextIfTooLong;
 import static com.yulong.http2.client.utils.Utils.toHexString;
 
-import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 
 public class PushPromiseFrame extends Frame implements Continuable, Padded {
 
@@ -16,8 +18,12 @@ public class PushPromiseFrame extends Frame implements Continuable, Padded {
 
 	private final int padLength;
 	private final int promisedStreamId;
-	private final byte[] headerBlockFragment;
-	private final byte[] padding;
+	private byte[] headerBlockFragment;
+	private byte[] padding;
+
+	// Views over the received payload, the arrays above are created on demand:
+	private ByteBuf headerBlockFragmentBuffer;
+	private ByteBuf paddingBuffer;
 
 	public PushPromiseFrame(int streamId, boolean endHeaders, int promisedStreamId, final byte[] headerBlockFragment) {
 		this(promisedStreamId, endHeaders, false, -1, promisedStreamId, headerBlockFragment);
@@ -61,24 +67,29 @@ public class PushPromiseFrame extends Frame implements Continuable, Padded {
 		this.endHeaders = (getFlags() & 0x4) == 0x4;
 		this.padded = (getFlags() & 0x8) == 0x8;
 
-		ByteBuffer payloadBuff = ByteBuffer.wrap(getPayload());
+		ByteBuf content = content();
+		int offset = content.readerIndex();
 
 		if (this.padded) {
-			this.padLength = payloadBuff.get();
+			this.padLength = content.getUnsignedByte(offset++);
 		} else {
 			this.padLength = -1;
 		}
 
-		this.promisedStreamId = payloadBuff.getInt();
-
-		this.headerBlockFragment = new byte[getPayloadLength() - (this.padLength + 1) - 4];
-		payloadBuff.get(this.headerBlockFragment);
+		this.promisedStreamId = content.getInt(offset);
+		offset += 4;
 
-		if (this.padLength > 0) {
-			this.padding = new byte[this.padLength];
-			payloadBuff.get(this.padding);
+		int fragmentLength = getPayloadLength() - (this.padLength + 1) - 4;
+		if (fragmentLength < 0) {
+			// An invalid pad length which will be rejected by the connection:
+			this.headerBlockFragmentBuffer = this.paddingBuffer = Unpooled.EMPTY_BUFFER;
 		} else {
-			this.padding = new byte[0];
+			this.headerBlockFragmentBuffer = content.slice(offset, fragmentLength);
+			if (this.padLength > 0) {
+				this.paddingBuffer = content.slice(offset + fragmentLength, this.padLength);
+			} else {
+				this.paddingBuffer = Unpooled.EMPTY_BUFFER;
+			}
 		}
 	}
 
@@ -103,11 +114,25 @@ public class PushPromiseFrame extends Frame implements Continuable, Padded {
 
 	@Override
 	public byte[] getHeaderBlockFragment() {
+		if (headerBlockFragment == null) {
+			headerBlockFragment = ByteBufUtil.getBytes(headerBlockFragmentBuffer);
+		}
 		return headerBlockFragment;
 	}
 
+	@Override
+	public ByteBuf getHeaderBlockFragmentBuffer() {
+		if (headerBlockFragmentBuffer == null) {
+			headerBlockFragmentBuffer = Unpooled.wrappedBuffer(headerBlockFragment);
+		}
+		return headerBlockFragmentBuffer;
+	}
+
 	@Override
 	public byte[] getPadding() {
+		if (padding == null) {
+			padding = ByteBufUtil.getBytes(paddingBuffer);
+		}
 		return padding;
 	}
 
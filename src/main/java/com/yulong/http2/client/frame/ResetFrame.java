@@ -19,7 +19,7 @@ public class ResetFrame extends Frame {
 
 	public ResetFrame(Frame rawFrame) {
 		copyFrom(rawFrame);
-		this.errorCode = ErrorCodeRegistry.from(toInt(rawFrame.getPayload()));
+		this.errorCode = ErrorCodeRegistry.from(toInt(getPayload()));
 	}
 
 	public ErrorCodeRegistry getErrorCode() {
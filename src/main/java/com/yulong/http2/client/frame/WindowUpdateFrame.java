@@ -37,7 +37,7 @@ public class WindowUpdateFrame extends Frame {
 
 		copyFrom(rawFrame);
 
-		ByteBuffer payloadBuff = ByteBuffer.wrap(rawFrame.getPayload());
+		ByteBuffer payloadBuff = ByteBuffer.wrap(getPayload());
 
 		byte firstByte = payloadBuff.get(0);
 		this.reservedBit = (firstByte & 0x80) == 0x80;
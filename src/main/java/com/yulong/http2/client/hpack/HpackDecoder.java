@@ -0,0 +1,338 @@
+package com.yulong.http2.client.hpack;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AsciiString;
+import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.common.ErrorCodeRegistry;
+import com.yulong.http2.client.message.Http2Headers;
+
+/**
+ * The HPACK decoder of a connection. It keeps the dynamic table in sync with
+ * the peer's encoder, so the header blocks must be decoded in the order they
+ * are received.
+ * <p>
+ * A header block is decoded fragment by fragment as the HEADERS, PUSH_PROMISE
+ * and CONTINUATION frames arrive. Only the octets of a header field split
+ * across two fragments are copied aside until the field is complete.
+ */
+public class HpackDecoder {
+
+	private final HpackDynamicTable dynamicTable;
+	// The table size allowed by the SETTINGS_HEADER_TABLE_SIZE we sent:
+	private int maxDynamicTableSize;
+	private boolean maxDynamicTableSizeChangeRequired;
+
+	// The scratch space of the Huffman decoding:
+	private byte[] huffmanBuffer = new byte[256];
+
+	// The state of the header block being decoded:
+	private Http2Headers headers;
+	private long maxHeaderListSize;
+	private long maxHeaderListSizeGoAway;
+	private long headerListSize;
+	private boolean headerListSizeExceeded;
+	private boolean headerFieldSeen;
+	// The beginning of a header field split across fragments:
+	private final ByteBuf carry = Unpooled.buffer(64);
+	// The number of octets at least missing to complete it:
+	private int missing;
+
+	public HpackDecoder(int maxHeaderTableSize) {
+		this.dynamicTable = new HpackDynamicTable(maxHeaderTableSize);
+		this.maxDynamicTableSize = maxHeaderTableSize;
+	}
+
+	/**
+	 * Change the table size allowed to the peer's encoder, after the peer has
+	 * acknowledged it. A smaller size requires the peer to signal a dynamic
+	 * table size update at the beginning of the next header block.
+	 * 
+	 * @param maxHeaderTableSize
+	 */
+	public void setMaxHeaderTableSize(int maxHeaderTableSize) {
+		this.maxDynamicTableSize = maxHeaderTableSize;
+		if (maxHeaderTableSize < dynamicTable.capacity()) {
+			maxDynamicTableSizeChangeRequired = true;
+			dynamicTable.setCapacity(maxHeaderTableSize);
+		}
+	}
+
+	public int getMaxHeaderTableSize() {
+		return maxDynamicTableSize;
+	}
+
+	/**
+	 * Decode a complete header block into the given headers
+	 * 
+	 * @param in
+	 * @param headers
+	 * @param maxHeaderListSize
+	 * @return false if the header list is larger than allowed, in which case
+	 *         the headers are left empty
+	 * @throws ConnectionException
+	 */
+	public boolean decode(ByteBuf in, Http2Headers headers, long maxHeaderListSize) throws ConnectionException {
+		beginHeaderBlock(headers, maxHeaderListSize);
+		decodeFragment(in);
+		return endHeaderBlock();
+	}
+
+	/**
+	 * Start decoding a header block
+	 * 
+	 * @param headers where the decoded header fields are added
+	 * @param maxHeaderListSize the SETTINGS_MAX_HEADER_LIST_SIZE to enforce
+	 */
+	public void beginHeaderBlock(Http2Headers headers, long maxHeaderListSize) {
+		this.headers = headers;
+		this.maxHeaderListSize = maxHeaderListSize;
+		// Beyond this size, the peer is not worth keeping the connection for:
+		this.maxHeaderListSizeGoAway = maxHeaderListSize + (maxHeaderListSize >>> 2);
+		this.headerListSize = 0;
+		this.headerListSizeExceeded = false;
+		this.headerFieldSeen = false;
+		this.carry.clear();
+	}
+
+	/**
+	 * Decode the next fragment of the header block. The fragment is not
+	 * retained once this method returns.
+	 * 
+	 * @param fragment
+	 * @throws ConnectionException
+	 */
+	public void decodeFragment(ByteBuf fragment) throws ConnectionException {
+
+		if (carry.isReadable()) {
+			// Complete the header field started in the previous fragment, taking
+			// no more octets than it needs:
+			while (carry.isReadable() && fragment.isReadable()) {
+				carry.writeBytes(fragment, Math.min(missing, fragment.readableBytes()));
+				while (carry.isReadable() && decodeRepresentation(carry)) {
+				}
+			}
+			if (carry.isReadable()) {
+				return;
+			}
+			carry.clear();
+		}
+
+		while (fragment.isReadable()) {
+			if (!decodeRepresentation(fragment)) {
+				carry.writeBytes(fragment);
+				return;
+			}
+		}
+
+	}
+
+	/**
+	 * @return the headers of the block being decoded
+	 */
+	public Http2Headers getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Finish decoding the header block
+	 * 
+	 * @return false if the header list is larger than allowed, in which case
+	 *         the headers are left empty
+	 * @throws ConnectionException
+	 */
+	public boolean endHeaderBlock() throws ConnectionException {
+		boolean truncated = carry.isReadable();
+		carry.clear();
+		headers = null;
+		if (truncated) {
+			throw new ConnectionException(ErrorCodeRegistry.COMPRESSION_ERROR, "Truncated header block");
+		}
+		return !headerListSizeExceeded;
+	}
+
+	/**
+	 * Decode one representation
+	 * 
+	 * @param in
+	 * @return false if the buffer ends before the representation does, the
+	 *         reader index is then left unchanged
+	 * @throws ConnectionException
+	 */
+	private boolean decodeRepresentation(ByteBuf in) throws ConnectionException {
+
+		int start = in.readerIndex();
+		int b = in.getUnsignedByte(start);
+
+		if (maxDynamicTableSizeChangeRequired && (b & 0xE0) != 0x20) {
+			throw new ConnectionException(ErrorCodeRegistry.COMPRESSION_ERROR, "Dynamic table size update required");
+		}
+
+		if ((b & 0x80) != 0) {
+			// Indexed Header Field:
+			int index = decodeInteger(in, 7);
+			if (index < 0) {
+				return truncated(in, start);
+			}
+			HpackHeaderField field = getIndexedHeader(index);
+			addHeader(field.name, field.value);
+		} else if ((b & 0x40) != 0) {
+			// Literal Header Field with Incremental Indexing:
+			HpackHeaderField field = decodeLiteral(in, 6);
+			if (field == null) {
+				return truncated(in, start);
+			}
+			dynamicTable.add(field);
+			addHeader(field.name, field.value);
+		} else if ((b & 0x20) != 0) {
+			// Dynamic Table Size Update:
+			if (headerFieldSeen) {
+				throw new ConnectionException(ErrorCodeRegistry.COMPRESSION_ERROR,
+						"Dynamic table size update after a header field");
+			}
+			int size = decodeInteger(in, 5);
+			if (size < 0) {
+				return truncated(in, start);
+			}
+			if (size > maxDynamicTableSize) {
+				throw new ConnectionException(ErrorCodeRegistry.COMPRESSION_ERROR,
+						"Dynamic table size update exceeds the maximum: " + size + " > " + maxDynamicTableSize);
+			}
+			dynamicTable.setCapacity(size);
+			maxDynamicTableSizeChangeRequired = false;
+		} else {
+			// Literal Header Field without Indexing / Never Indexed:
+			HpackHeaderField field = decodeLiteral(in, 4);
+			if (field == null) {
+				return truncated(in, start);
+			}
+			addHeader(field.name, field.value);
+		}
+
+		return true;
+
+	}
+
+	private boolean truncated(ByteBuf in, int start) {
+		in.readerIndex(start);
+		return false;
+	}
+
+	/**
+	 * Add the decoded header field unless the header list has grown too large.
+	 * The header fields are decoded anyway to keep the dynamic table in sync.
+	 */
+	private void addHeader(AsciiString name, AsciiString value) throws ConnectionException {
+		headerFieldSeen = true;
+		headerListSize += name.length() + value.length() + HpackHeaderField.ENTRY_OVERHEAD;
+		if (headerListSize > maxHeaderListSizeGoAway) {
+			throw new ConnectionException(ErrorCodeRegistry.ENHANCE_YOUR_CALM,
+					"Header list size exceeds " + maxHeaderListSizeGoAway);
+		}
+		if (headerListSize > maxHeaderListSize) {
+			if (!headerListSizeExceeded) {
+				headerListSizeExceeded = true;
+				headers.clear();
+			}
+		} else {
+			headers.add(name, value);
+		}
+	}
+
+	/**
+	 * @return null if the buffer ends before the literal does
+	 */
+	private HpackHeaderField decodeLiteral(ByteBuf in, int prefixBits) throws ConnectionException {
+		int nameIndex = decodeInteger(in, prefixBits);
+		if (nameIndex < 0) {
+			return null;
+		}
+		AsciiString name = nameIndex == 0 ? decodeString(in) : getIndexedHeader(nameIndex).name;
+		if (name == null) {
+			return null;
+		}
+		AsciiString value = decodeString(in);
+		if (value == null) {
+			return null;
+		}
+		return new HpackHeaderField(name, value);
+	}
+
+	private HpackHeaderField getIndexedHeader(int index) throws ConnectionException {
+		if (index > 0 && index <= HpackStaticTable.LENGTH) {
+			return HpackStaticTable.getEntry(index);
+		}
+		if (index > HpackStaticTable.LENGTH && index - HpackStaticTable.LENGTH <= dynamicTable.length()) {
+			return dynamicTable.getEntry(index - HpackStaticTable.LENGTH);
+		}
+		throw new ConnectionException(ErrorCodeRegistry.COMPRESSION_ERROR, "Illegal index value: " + index);
+	}
+
+	/**
+	 * Read a string literal (RFC 7541, Section 5.2)
+	 * 
+	 * @return null if the buffer ends before the literal does
+	 */
+	private AsciiString decodeString(ByteBuf in) throws ConnectionException {
+		if (!in.isReadable()) {
+			missing = 1;
+			return null;
+		}
+		boolean huffmanEncoded = (in.getByte(in.readerIndex()) & 0x80) != 0;
+		int length = decodeInteger(in, 7);
+		if (length < 0) {
+			return null;
+		}
+		if (length > maxHeaderListSizeGoAway) {
+			// Refuse to buffer it:
+			throw new ConnectionException(ErrorCodeRegistry.ENHANCE_YOUR_CALM,
+					"String literal length exceeds " + maxHeaderListSizeGoAway);
+		}
+		if (length > in.readableBytes()) {
+			missing = length - in.readableBytes();
+			return null;
+		}
+		if (huffmanEncoded) {
+			// The shortest Huffman code is 5 bits:
+			int maxDecodedLength = (int) ((length * 8L) / 5);
+			if (huffmanBuffer.length < maxDecodedLength) {
+				huffmanBuffer = new byte[Math.max(maxDecodedLength, huffmanBuffer.length * 2)];
+			}
+			int decodedLength = HpackHuffman.decode(in, length, huffmanBuffer);
+			return new AsciiString(huffmanBuffer, 0, decodedLength, true);
+		}
+		byte[] bytes = new byte[length];
+		in.readBytes(bytes);
+		return new AsciiString(bytes, false);
+	}
+
+	/**
+	 * Read an integer with an N-bit prefix (RFC 7541, Section 5.1)
+	 * 
+	 * @return -1 if the buffer ends before the integer does
+	 */
+	private int decodeInteger(ByteBuf in, int prefixBits) throws ConnectionException {
+		int maxPrefix = 0xFF >>> (8 - prefixBits);
+		int value = in.readUnsignedByte() & maxPrefix;
+		if (value < maxPrefix) {
+			return value;
+		}
+		long result = value;
+		for (int shift = 0; shift <= 28; shift += 7) {
+			if (!in.isReadable()) {
+				missing = 1;
+				return -1;
+			}
+			int b = in.readUnsignedByte();
+			result += (long) (b & 0x7F) << shift;
+			if (result > Integer.MAX_VALUE) {
+				break;
+			}
+			if ((b & 0x80) == 0) {
+				return (int) result;
+			}
+		}
+		throw new ConnectionException(ErrorCodeRegistry.COMPRESSION_ERROR, "Integer overflow in the header block");
+	}
+
+}
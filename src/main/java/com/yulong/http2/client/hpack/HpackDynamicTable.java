@@ -0,0 +1,180 @@
+package com.yulong.http2.client.hpack;
+
+import io.netty.util.AsciiString;
+
+/**
+ * The dynamic table defined in RFC 7541, Section 2.3.2, kept in a circular
+ * array
+ */
+final class HpackDynamicTable {
+
+	private HpackHeaderField[] fields;
+	// The position of the next entry to add:
+	private int head;
+	// The position of the oldest entry:
+	private int tail;
+	private int size;
+	private int capacity = -1;
+
+	HpackDynamicTable(int capacity) {
+		setCapacity(capacity);
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	int length() {
+		return head < tail ? fields.length - tail + head : head - tail;
+	}
+
+	/**
+	 * @return the sum of the entry sizes
+	 */
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the entry at the given index
+	 * 
+	 * @param index from 1 (the newest) to {@link #length()} (the oldest)
+	 * @return
+	 */
+	HpackHeaderField getEntry(int index) {
+		int i = head - index;
+		if (i < 0) {
+			i += fields.length;
+		}
+		return fields[i];
+	}
+
+	/**
+	 * Get the index of the newest entry with the given name and value
+	 * 
+	 * @param name
+	 * @param value
+	 * @return the index or -1 if not found
+	 */
+	int getIndex(AsciiString name, AsciiString value) {
+		int length = length();
+		for (int index = 1; index <= length; index++) {
+			HpackHeaderField entry = getEntry(index);
+			if (entry.name.hashCode() == name.hashCode() && entry.name.equals(name) && entry.value.equals(value)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the index of the newest entry with the given name
+	 * 
+	 * @param name
+	 * @return the index or -1 if not found
+	 */
+	int getIndex(AsciiString name) {
+		int length = length();
+		for (int index = 1; index <= length; index++) {
+			HpackHeaderField entry = getEntry(index);
+			if (entry.name.hashCode() == name.hashCode() && entry.name.equals(name)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add an entry, evicting the oldest ones to make room for it. An entry
+	 * larger than the capacity empties the table.
+	 * 
+	 * @param field
+	 */
+	void add(HpackHeaderField field) {
+		int fieldSize = field.size();
+		if (fieldSize > capacity) {
+			clear();
+			return;
+		}
+		while (capacity - size < fieldSize) {
+			remove();
+		}
+		fields[head++] = field;
+		size += fieldSize;
+		if (head == fields.length) {
+			head = 0;
+		}
+	}
+
+	/**
+	 * Remove the oldest entry
+	 */
+	void remove() {
+		HpackHeaderField removed = fields[tail];
+		if (removed == null) {
+			return;
+		}
+		size -= removed.size();
+		fields[tail++] = null;
+		if (tail == fields.length) {
+			tail = 0;
+		}
+	}
+
+	void clear() {
+		while (tail != head) {
+			fields[tail++] = null;
+			if (tail == fields.length) {
+				tail = 0;
+			}
+		}
+		head = 0;
+		tail = 0;
+		size = 0;
+	}
+
+	/**
+	 * Change the maximum size of the table, evicting entries if needed
+	 * 
+	 * @param capacity
+	 */
+	void setCapacity(int capacity) {
+
+		if (this.capacity == capacity) {
+			return;
+		}
+		this.capacity = capacity;
+
+		if (capacity == 0) {
+			clear();
+		} else {
+			while (size > capacity) {
+				remove();
+			}
+		}
+
+		// One more slot than the entries that can fit, so that a full table
+		// is never mistaken for an empty one:
+		int maxEntries = (capacity + HpackHeaderField.ENTRY_OVERHEAD - 1) / HpackHeaderField.ENTRY_OVERHEAD + 1;
+		if (fields != null && fields.length == maxEntries) {
+			return;
+		}
+
+		HpackHeaderField[] newFields = new HpackHeaderField[maxEntries];
+		int length = fields == null ? 0 : length();
+		for (int i = 0; i < length; i++) {
+			newFields[i] = fields[tail];
+			if (++tail == fields.length) {
+				tail = 0;
+			}
+		}
+		this.fields = newFields;
+		this.tail = 0;
+		this.head = length;
+
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.yulong.http2.client.hpack;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AsciiString;
+import com.yulong.http2.client.message.Header;
+import com.yulong.http2.client.message.Http2Headers;
+
+/**
+ * The HPACK encoder of a connection. It keeps the dynamic table in sync with
+ * the peer's decoder, so the header blocks must be sent in the order they are
+ * encoded.
+ */
+public class HpackEncoder {
+
+	// The encoder never grows its dynamic table beyond this size whatever the
+	// peer allows:
+	private static final int MAX_TABLE_SIZE = Integer.getInteger("http2.hpack.encoder.max.table.size", 65536);
+
+	// The header names whose prefix make them never indexed, by their first octet:
+	private static final AsciiString[][] SENSITIVE_PREFIXES = new AsciiString[256][];
+	// The static table entries that are never indexed:
+	private static final boolean[] SENSITIVE_STATIC = new boolean[HpackStaticTable.LENGTH + 1];
+
+	static {
+		for (String prefix : new String[] { "cookie", "set-cookie", "sensitive-" }) {
+			AsciiString prefixString = AsciiString.cached(prefix);
+			int first = prefixString.byteAt(0) & 0xFF;
+			AsciiString[] prefixes = SENSITIVE_PREFIXES[first];
+			if (prefixes == null) {
+				prefixes = new AsciiString[] { prefixString };
+			} else {
+				AsciiString[] tmp = new AsciiString[prefixes.length + 1];
+				System.arraycopy(prefixes, 0, tmp, 0, prefixes.length);
+				tmp[prefixes.length] = prefixString;
+				prefixes = tmp;
+			}
+			SENSITIVE_PREFIXES[first] = prefixes;
+		}
+		for (int index = 1; index <= HpackStaticTable.LENGTH; index++) {
+			SENSITIVE_STATIC[index] = isSensitive(HpackStaticTable.getEntry(index).name);
+		}
+	}
+
+	private final HpackDynamicTable dynamicTable;
+
+	public HpackEncoder(int maxHeaderTableSize) {
+		this.dynamicTable = new HpackDynamicTable(capped(maxHeaderTableSize));
+	}
+
+	/**
+	 * Encode the given headers into the buffer
+	 * 
+	 * @param out
+	 * @param headers
+	 */
+	public void encodeHeaders(ByteBuf out, Http2Headers headers) {
+		for (Header header : headers.all()) {
+			encodeHeader(out, header.getNameAscii(), header.getValueAscii());
+		}
+	}
+
+	/**
+	 * Change the size of the dynamic table and write the dynamic table size
+	 * update into the buffer, which must be at the beginning of a header block
+	 * 
+	 * @param out
+	 * @param maxHeaderTableSize
+	 */
+	public void setMaxHeaderTableSize(ByteBuf out, int maxHeaderTableSize) {
+		int capacity = capped(maxHeaderTableSize);
+		if (capacity == dynamicTable.capacity()) {
+			return;
+		}
+		dynamicTable.setCapacity(capacity);
+		encodeInteger(out, 0x20, 5, capacity);
+	}
+
+	public int getMaxHeaderTableSize() {
+		return dynamicTable.capacity();
+	}
+
+	private void encodeHeader(ByteBuf out, AsciiString name, AsciiString value) {
+
+		int staticNameIndex = HpackStaticTable.getIndex(name);
+
+		boolean sensitive = staticNameIndex > 0 ? SENSITIVE_STATIC[staticNameIndex] : isSensitive(name);
+		if (sensitive) {
+			encodeLiteral(out, 0x10, 4, name, value, nameIndex(staticNameIndex, name));
+			return;
+		}
+
+		int headerSize = name.length() + value.length() + HpackHeaderField.ENTRY_OVERHEAD;
+		if (headerSize > dynamicTable.capacity()) {
+			int staticIndex = staticNameIndex > 0 ? HpackStaticTable.getIndex(staticNameIndex, value) : -1;
+			if (staticIndex > 0) {
+				encodeInteger(out, 0x80, 7, staticIndex);
+			} else {
+				encodeLiteral(out, 0x00, 4, name, value, nameIndex(staticNameIndex, name));
+			}
+			return;
+		}
+
+		int dynamicIndex = dynamicTable.getIndex(name, value);
+		if (dynamicIndex > 0) {
+			encodeInteger(out, 0x80, 7, dynamicIndex + HpackStaticTable.LENGTH);
+			return;
+		}
+
+		int staticIndex = staticNameIndex > 0 ? HpackStaticTable.getIndex(staticNameIndex, value) : -1;
+		if (staticIndex > 0) {
+			encodeInteger(out, 0x80, 7, staticIndex);
+			return;
+		}
+
+		// The name index is resolved before the new entry evicts anything, as
+		// the decoder does:
+		encodeLiteral(out, 0x40, 6, name, value, nameIndex(staticNameIndex, name));
+		dynamicTable.add(new HpackHeaderField(name, value));
+
+	}
+
+	private int nameIndex(int staticNameIndex, AsciiString name) {
+		if (staticNameIndex > 0) {
+			return staticNameIndex;
+		}
+		int dynamicIndex = dynamicTable.getIndex(name);
+		return dynamicIndex > 0 ? dynamicIndex + HpackStaticTable.LENGTH : 0;
+	}
+
+	private static void encodeLiteral(ByteBuf out, int mask, int prefixBits, AsciiString name, AsciiString value,
+			int nameIndex) {
+		encodeInteger(out, mask, prefixBits, nameIndex);
+		if (nameIndex == 0) {
+			encodeString(out, name);
+		}
+		encodeString(out, value);
+	}
+
+	/**
+	 * Write a string literal, Huffman encoded if it makes it shorter
+	 */
+	private static void encodeString(ByteBuf out, AsciiString string) {
+		int huffmanLength = HpackHuffman.encodedLength(string);
+		if (huffmanLength < string.length()) {
+			encodeInteger(out, 0x80, 7, huffmanLength);
+			HpackHuffman.encode(out, string);
+		} else {
+			encodeInteger(out, 0x00, 7, string.length());
+			out.writeBytes(string.array(), string.arrayOffset(), string.length());
+		}
+	}
+
+	/**
+	 * Write an integer with an N-bit prefix (RFC 7541, Section 5.1)
+	 */
+	private static void encodeInteger(ByteBuf out, int mask, int prefixBits, int value) {
+		int maxPrefix = 0xFF >>> (8 - prefixBits);
+		if (value < maxPrefix) {
+			out.writeByte(mask | value);
+		} else {
+			out.writeByte(mask | maxPrefix);
+			int remaining = value - maxPrefix;
+			while ((remaining & ~0x7F) != 0) {
+				out.writeByte((remaining & 0x7F) | 0x80);
+				remaining >>>= 7;
+			}
+			out.writeByte(remaining);
+		}
+	}
+
+	private static boolean isSensitive(AsciiString name) {
+		if (name.isEmpty()) {
+			return false;
+		}
+		AsciiString[] prefixes = SENSITIVE_PREFIXES[name.byteAt(0) & 0xFF];
+		if (prefixes != null) {
+			for (AsciiString prefix : prefixes) {
+				if (name.startsWith(prefix)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The SETTINGS_HEADER_TABLE_SIZE is an unsigned 32-bit integer which may
+	 * have been read as a negative value
+	 */
+	private static int capped(int maxHeaderTableSize) {
+		if (maxHeaderTableSize < 0 || maxHeaderTableSize > MAX_TABLE_SIZE) {
+			return MAX_TABLE_SIZE;
+		}
+		return maxHeaderTableSize;
+	}
+
+}
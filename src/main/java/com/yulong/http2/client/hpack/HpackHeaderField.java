@@ -0,0 +1,30 @@
+package com.yulong.http2.client.hpack;
+
+import io.netty.util.AsciiString;
+
+/**
+ * An entry of the static or dynamic header table
+ */
+final class HpackHeaderField {
+
+	// The overhead of an entry defined in RFC 7541, Section 4.1:
+	static final int ENTRY_OVERHEAD = 32;
+
+	final AsciiString name;
+	final AsciiString value;
+
+	HpackHeaderField(AsciiString name, AsciiString value) {
+		this.name = name;
+		this.value = value;
+	}
+
+	int size() {
+		return name.length() + value.length() + ENTRY_OVERHEAD;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + value;
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.yulong.http2.client.hpack;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.util.AsciiString;
+
+/**
+ * The static table defined in RFC 7541, Appendix A
+ */
+final class HpackStaticTable {
+
+	private static final HpackHeaderField[] STATIC_TABLE = {
+			field(":authority", ""),
+			field(":method", "GET"),
+			field(":method", "POST"),
+			field(":path", "/"),
+			field(":path", "/index.html"),
+			field(":scheme", "http"),
+			field(":scheme", "https"),
+			field(":status", "200"),
+			field(":status", "204"),
+			field(":status", "206"),
+			field(":status", "304"),
+			field(":status", "400"),
+			field(":status", "404"),
+			field(":status", "500"),
+			field("accept-charset", ""),
+			field("accept-encoding", "gzip, deflate"),
+			field("accept-language", ""),
+			field("accept-ranges", ""),
+			field("accept", ""),
+			field("access-control-allow-origin", ""),
+			field("age", ""),
+			field("allow", ""),
+			field("authorization", ""),
+			field("cache-control", ""),
+			field("content-disposition", ""),
+			field("content-encoding", ""),
+			field("content-language", ""),
+			field("content-length", ""),
+			field("content-location", ""),
+			field("content-range", ""),
+			field("content-type", ""),
+			field("cookie", ""),
+			field("date", ""),
+			field("etag", ""),
+			field("expect", ""),
+			field("expires", ""),
+			field("from", ""),
+			field("host", ""),
+			field("if-match", ""),
+			field("if-modified-since", ""),
+			field("if-none-match", ""),
+			field("if-range", ""),
+			field("if-unmodified-since", ""),
+			field("last-modified", ""),
+			field("link", ""),
+			field("location", ""),
+			field("max-forwards", ""),
+			field("proxy-authenticate", ""),
+			field("proxy-authorization", ""),
+			field("range", ""),
+			field("referer", ""),
+			field("refresh", ""),
+			field("retry-after", ""),
+			field("server", ""),
+			field("set-cookie", ""),
+			field("strict-transport-security", ""),
+			field("transfer-encoding", ""),
+			field("user-agent", ""),
+			field("vary", ""),
+			field("via", ""),
+			field("www-authenticate", "") };
+
+	static final int LENGTH = STATIC_TABLE.length;
+
+	// The lowest index of each name, the entries sharing a name are contiguous:
+	private static final Map<AsciiString, Integer> NAME_INDEX = new HashMap<>();
+
+	static {
+		for (int index = LENGTH; index > 0; index--) {
+			NAME_INDEX.put(STATIC_TABLE[index - 1].name, index);
+		}
+	}
+
+	private HpackStaticTable() {
+	}
+
+	private static HpackHeaderField field(String name, String value) {
+		return new HpackHeaderField(AsciiString.cached(name), AsciiString.cached(value));
+	}
+
+	/**
+	 * Get the entry at the given index
+	 * 
+	 * @param index from 1 to {@link #LENGTH}
+	 * @return
+	 */
+	static HpackHeaderField getEntry(int index) {
+		return STATIC_TABLE[index - 1];
+	}
+
+	/**
+	 * Get the lowest index of the entries with the given name
+	 * 
+	 * @param name
+	 * @return the index or -1 if not found
+	 */
+	static int getIndex(AsciiString name) {
+		Integer index = NAME_INDEX.get(name);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Get the index of the entry with the given name and value, starting with
+	 * the given name index
+	 * 
+	 * @param nameIndex
+	 * @param value
+	 * @return the index or -1 if not found
+	 */
+	static int getIndex(int nameIndex, AsciiString value) {
+		AsciiString name = STATIC_TABLE[nameIndex - 1].name;
+		for (int index = nameIndex; index <= LENGTH; index++) {
+			HpackHeaderField entry = STATIC_TABLE[index - 1];
+			if (!entry.name.equals(name)) {
+				break;
+			}
+			if (entry.value.equals(value)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -1,21 +1,75 @@
 package com.yulong.http2.client.message;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.netty.util.AsciiString;
+
 public class Header {
 
-	private String name;
-	private String value;
+	private final CharSequence name;
+	private final CharSequence value;
+
+	// Created on demand from the above:
+	private String nameString;
+	private String valueString;
+	private AsciiString nameAscii;
+	private AsciiString valueAscii;
 
-	public Header(String name, String value) {
+	public Header(CharSequence name, CharSequence value) {
 		this.name = name;
 		this.value = value;
 	}
 
 	public String getName() {
-		return name;
+		if (nameString == null) {
+			nameString = toString(name);
+		}
+		return nameString;
 	}
 
 	public String getValue() {
-		return value;
+		if (valueString == null) {
+			valueString = toString(value);
+		}
+		return valueString;
+	}
+
+	/**
+	 * @return the name in lower case as it is sent on the wire
+	 */
+	public AsciiString getNameAscii() {
+		if (nameAscii == null) {
+			nameAscii = toAscii(name).toLowerCase();
+		}
+		return nameAscii;
+	}
+
+	/**
+	 * @return the value as it is sent on the wire
+	 */
+	public AsciiString getValueAscii() {
+		if (valueAscii == null) {
+			valueAscii = toAscii(value);
+		}
+		return valueAscii;
+	}
+
+	private static String toString(CharSequence sequence) {
+		if (sequence == null) {
+			return null;
+		}
+		if (sequence instanceof AsciiString) {
+			AsciiString ascii = (AsciiString) sequence;
+			return new String(ascii.array(), ascii.arrayOffset(), ascii.length(), UTF_8);
+		}
+		return sequence.toString();
+	}
+
+	private static AsciiString toAscii(CharSequence sequence) {
+		if (sequence instanceof AsciiString) {
+			return (AsciiString) sequence;
+		}
+		return new AsciiString(sequence, UTF_8);
 	}
 
 }
@@ -5,6 +5,8 @@ import static com.yulong.http2.client.utils.Utils.showPartOfTextIfTooLong;
 import java.util.ArrayList;
 import java.util.List;
 
+import io.netty.buffer.ByteBuf;
+
 import com.yulong.http2.client.Connection;
 import com.yulong.http2.client.ConnectionException;
 
@@ -24,23 +26,23 @@ public class Http2Headers {
 		this.headers = new ArrayList<Header>(16);
 		this.connection = connection;
 		if (method != null) {
-			add(PseudoHeader.METHOD.value(), method);
+			add(PseudoHeader.METHOD.asciiValue(), method);
 			if (path != null) {
-				add(PseudoHeader.PATH.value(), System.getProperty("http2.path.prefix", "") + path);
+				add(PseudoHeader.PATH.asciiValue(), System.getProperty("http2.path.prefix", "") + path);
 			}
-			add(PseudoHeader.AUTHORITY.value(), this.connection.getHost() + ":" + this.connection.getPort());
-			add(PseudoHeader.SCHEME.value(), this.connection.getScheme());
+			add(PseudoHeader.AUTHORITY.asciiValue(), this.connection.getHost() + ":" + this.connection.getPort());
+			add(PseudoHeader.SCHEME.asciiValue(), this.connection.getScheme());
 		}
 	}
 
-	public byte[] toHeaderBlock() {
+	public ByteBuf toHeaderBlock() {
 		//		if (!contains("User-Agent")) {
 		//			add(new Header("User-Agent", "wlstest.http2.client/1.0"));
 		//		}
 		return connection.encode(this);
 	}
 
-	public static Http2Headers fromHeaderBlock(Connection connection, byte[] headerBlock) throws ConnectionException {
+	public static Http2Headers fromHeaderBlock(Connection connection, ByteBuf headerBlock) throws ConnectionException {
 		return connection.decode(headerBlock);
 	}
 
@@ -53,7 +55,7 @@ public class Http2Headers {
 		return this;
 	}
 
-	public Http2Headers add(String name, String value) {
+	public Http2Headers add(CharSequence name, CharSequence value) {
 		return add(new Header(name, value));
 	}
 
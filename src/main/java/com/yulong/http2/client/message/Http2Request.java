@@ -1,16 +1,27 @@
 package com.yulong.http2.client.message;
 
 import static java.util.Base64.getEncoder;
-import static com.yulong.http2.client.utils.Utils.fragment;
+import static com.yulong.http2.client.utils.LogUtil.log;
 import static com.yulong.http2.client.utils.Utils.string2Bytes;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import com.yulong.http2.client.Connection;
 import com.yulong.http2.client.ConnectionException;
 import com.yulong.http2.client.Stream;
@@ -26,10 +37,16 @@ import com.yulong.http2.client.utils.Utils;
  */
 public final class Http2Request {
 
+	// Times the deadlines of the asynchronous requests:
+	private static final HashedWheelTimer TIMER = new HashedWheelTimer(
+			new DefaultThreadFactory("http2-request-timer", true), 10, TimeUnit.MILLISECONDS);
+
 	private final Connection connection;
 	private Http2Headers headers;
 	private byte[] entity;
 	private Http2Headers trailers;
+	// No deadline if not positive:
+	private long timeoutMillis;
 
 	private Http2Request(Connection connection) {
 		this.connection = connection;
@@ -80,72 +97,211 @@ public final class Http2Request {
 	public Http2Response send(int maxDataFrameSize, int waitSecondsSendingDataFrame, boolean sendWindowUpdate)
 			throws ConnectionException {
 
-		int settingsMaxFrameSize = connection.currentSettings().getMaxFrameSize();
+		// The retries are within the same deadline:
+		long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+		int maxRetries = Integer.getInteger("http2.request.max.retries", 3);
+		for (int attempt = 0;; attempt++) {
+			try {
+				return sendOnce(maxDataFrameSize, waitSecondsSendingDataFrame, sendWindowUpdate, deadline);
+			} catch (ConnectionException e) {
+				// A refused stream has not been processed by the peer, so it's
+				// safe to send it again (RFC 7540, Section 8.1.4):
+				if (e.GetError() != ErrorCodeRegistry.REFUSED_STREAM || attempt >= maxRetries) {
+					throw e;
+				}
+				log("Retrying the refused request: " + e);
+			}
+		}
 
-		try (Stream stream = connection.newStream()) {
+	}
 
-			if (sendWindowUpdate) {
-				stream.addDefaultDataFrameConsumer();
+	/**
+	 * Send a request without taking into account cookies, redirection etc.,
+	 * without blocking the calling thread. The refused requests are retried
+	 * and the deadline is applied as by send(). Cancelling the future resets
+	 * the stream with CANCEL.
+	 * 
+	 * @return a future completed with the response, along with the pushed
+	 *         responses if any
+	 */
+	public CompletableFuture<Http2Response> sendAsync() {
+
+		CompletableFuture<Http2Response> result = new CompletableFuture<>();
+
+		if (timeoutMillis > 0) {
+			Timeout timeout = TIMER.newTimeout(
+					t -> result.completeExceptionally(new ConnectionException(ErrorCodeRegistry.CANCEL,
+							"Failed to get response within the deadline of " + timeoutMillis + " milliseconds")),
+					timeoutMillis, TimeUnit.MILLISECONDS);
+			result.whenComplete((response, cause) -> timeout.cancel());
+		}
+
+		sendAsync(result, 0, Integer.getInteger("http2.request.max.retries", 3));
+		return result;
+
+	}
+
+	private void sendAsync(CompletableFuture<Http2Response> result, int attempt, int maxRetries) {
+		sendOnceAsync(result).whenComplete((response, e) -> {
+			if (e == null) {
+				result.complete(response);
+				return;
+			}
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			// A refused stream has not been processed by the peer, so it's
+			// safe to send it again (RFC 7540, Section 8.1.4):
+			if (cause instanceof ConnectionException
+					&& ((ConnectionException) cause).GetError() == ErrorCodeRegistry.REFUSED_STREAM
+					&& attempt < maxRetries && !result.isDone()) {
+				log("Retrying the refused request: " + cause);
+				sendAsync(result, attempt + 1, maxRetries);
+			} else {
+				result.completeExceptionally(cause);
 			}
+		});
+	}
 
-			// Send request headers:
-			sendHeaderOrTrailer(stream, headers, settingsMaxFrameSize, entity == null);
+	/**
+	 * Send the request on a new stream once admitted. The stream is given up
+	 * once the result is completed otherwise, i.e. cancelled or timed out.
+	 * 
+	 * @param result
+	 * @return
+	 */
+	private CompletableFuture<Http2Response> sendOnceAsync(CompletableFuture<Http2Response> result) {
 
-			// Send request body:
-			if (entity != null) {
+		// The connections behind a pool or a managed connection may change
+		// between two attempts:
+		return this.connection.selectConnection().thenCompose(connection -> sendOnceAsync(result, connection));
 
-				if (maxDataFrameSize <= 0 || maxDataFrameSize > settingsMaxFrameSize) {
-					maxDataFrameSize = settingsMaxFrameSize;
-				}
+	}
 
-				int entityLength = entity.length;
-				if (entityLength <= maxDataFrameSize) {
-					// If the data size is smaller than maxDataFrameSize, send it in one DATA frame:
-					stream.data(new DataFrame(stream.getId(), trailers == null, entity));
-				} else {
-					// If the data size is larger, send more DATA frames:
-					List<byte[]> dataFragments = fragment(entity, maxDataFrameSize);
+	private CompletableFuture<Http2Response> sendOnceAsync(CompletableFuture<Http2Response> result,
+			Connection connection) {
 
-					int fragmentSize = dataFragments.size();
+		int settingsMaxFrameSize = connection.currentSettings().getMaxFrameSize();
 
-					boolean endStreamFlag = false;
-					for (int i = 0; i < dataFragments.size(); i++) {
-						if (i == fragmentSize - 1) {
-							endStreamFlag = trailers == null;
-						} else {
-							endStreamFlag = false;
-						}
-						if (i == 0) {
-							// skip waiting:
+		CompletableFuture<Void> admission = connection.admitStream();
+		result.whenComplete((response, cause) -> admission.cancel(false));
+
+		return admission.thenCompose(admitted -> {
+
+			Stream stream;
+			try {
+				stream = openStream(connection, true, settingsMaxFrameSize);
+			} catch (ConnectionException | IOException e) {
+				return failed(e);
+			}
+			result.whenComplete((response, cause) -> stream.getResponseFuture().cancel(false));
+
+			CompletableFuture<Void> sent;
+			try {
+				// The trailers follow the DATA once it's written:
+				sent = sendBody(stream, -1, 0, settingsMaxFrameSize)
+						.thenCompose(written -> sendTrailers(stream, settingsMaxFrameSize));
+				connection.flush();
+			} catch (ConnectionException e) {
+				closeQuietly(stream);
+				return failed(e);
+			}
+
+			CompletableFuture<Http2Response> outcome = new CompletableFuture<>();
+			sent.whenComplete((written, cause) -> {
+				// Unless the response has been received meanwhile:
+				if (cause != null) {
+					outcome.completeExceptionally(cause instanceof CompletionException ? cause.getCause() : cause);
+				}
+			});
+			stream.getResponseFuture().thenCompose(response -> withPushedResponses(stream, response))
+					.whenComplete((response, cause) -> {
+						if (cause != null) {
+							outcome.completeExceptionally(cause);
 						} else {
-							if (waitSecondsSendingDataFrame > 0) {
-								try {
-									Thread.sleep(waitSecondsSendingDataFrame * 1000);
-								} catch (InterruptedException e) {
-									System.out.println("Failed to make the current thread to sleep: " + e);
-								}
-							}
+							outcome.complete(response);
 						}
-						stream.data(new DataFrame(stream.getId(), endStreamFlag, dataFragments.get(i)));
-					}
+					});
+			// A body not fully sent by then is given up:
+			return outcome.whenComplete((response, cause) -> closeQuietly(stream));
+
+		});
+
+	}
 
+	/**
+	 * Complete the response once the responses pushed along with it are
+	 * received
+	 * 
+	 * @param stream
+	 * @param response
+	 * @return
+	 */
+	private static CompletableFuture<Http2Response> withPushedResponses(Stream stream, Http2Response response) {
+		Map<PushRequest, Stream> promisedStreams = stream.promisedStreams();
+		if (promisedStreams.isEmpty()) {
+			return CompletableFuture.completedFuture(response);
+		}
+		Http2ResponseImpl responseImpl = (Http2ResponseImpl) response;
+		CompletableFuture<?>[] pushed = new CompletableFuture<?>[promisedStreams.size()];
+		int i = 0;
+		for (Map.Entry<PushRequest, Stream> entry : promisedStreams.entrySet()) {
+			PushRequest pushReq = entry.getKey();
+			pushed[i++] = entry.getValue().getResponseFuture().thenAccept(pushedResponse -> {
+				synchronized (responseImpl) {
+					responseImpl.pushedResponses().put(pushReq, pushedResponse);
 				}
+			});
+		}
+		return CompletableFuture.allOf(pushed).thenApply(done -> response);
+	}
 
-			}
+	private static <T> CompletableFuture<T> failed(Throwable cause) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(cause);
+		return future;
+	}
+
+	private static void closeQuietly(Stream stream) {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			log("Failed to close the stream: " + e);
+		}
+	}
+
+	private Http2Response sendOnce(int maxDataFrameSize, int waitSecondsSendingDataFrame, boolean sendWindowUpdate,
+			long deadline) throws ConnectionException {
+
+		// The connections behind a pool or a managed connection may change
+		// between two attempts:
+		Connection connection = awaitConnection(this.connection.selectConnection(), deadline);
+		int settingsMaxFrameSize = connection.currentSettings().getMaxFrameSize();
+
+		// Wait for the peer to allow one more concurrent stream:
+		awaitAdmission(connection, deadline);
+
+		try (Stream stream = openStream(connection, sendWindowUpdate, settingsMaxFrameSize)) {
+
+			CompletableFuture<Void> dataWritten = sendBody(stream, maxDataFrameSize, waitSecondsSendingDataFrame,
+					settingsMaxFrameSize);
+
+			// All the frames of the request are written, push them out at once:
+			connection.flush();
 
-			// Send trailers if any:
-			if (trailers != null) {
+			// The trailers must not overtake the DATA waiting for the
+			// flow-control windows:
+			if (awaitWritten(stream, dataWritten, deadline) && trailers != null) {
 				sendHeaderOrTrailer(stream, trailers, settingsMaxFrameSize, true);
+				connection.flush();
 			}
 
 			// Wait to get the response:
-			Http2ResponseImpl response = (Http2ResponseImpl) stream.getResponse();
+			Http2ResponseImpl response = (Http2ResponseImpl) awaitResponse(stream, deadline);
 
 			// Receive the pushed responses if any:
 			for (Map.Entry<PushRequest, Stream> entry : stream.promisedStreams().entrySet()) {
 				PushRequest pushReq = entry.getKey();
 				Stream promisedStream = entry.getValue();
-				response.pushedResponses().put(pushReq, promisedStream.getResponse());
+				response.pushedResponses().put(pushReq, awaitResponse(promisedStream, deadline));
 			}
 
 			return response;
@@ -157,6 +313,236 @@ public final class Http2Request {
 
 	}
 
+	/**
+	 * Queue the entity of the request, if any, on the stream. The DATA is
+	 * written as the flow-control windows allow, the trailers are left to the
+	 * caller to send once it's written.
+	 * 
+	 * @param stream
+	 * @param maxDataFrameSize
+	 * @param waitSecondsSendingDataFrame
+	 * @param settingsMaxFrameSize
+	 * @return a future completed once all the DATA is written
+	 * @throws ConnectionException
+	 */
+	private CompletableFuture<Void> sendBody(Stream stream, int maxDataFrameSize, int waitSecondsSendingDataFrame,
+			int settingsMaxFrameSize) throws ConnectionException {
+
+		List<CompletableFuture<Void>> written = new ArrayList<>();
+
+		// Send request body:
+		if (entity != null) {
+
+			if (maxDataFrameSize <= 0 || maxDataFrameSize > settingsMaxFrameSize) {
+				maxDataFrameSize = settingsMaxFrameSize;
+			}
+
+			int entityLength = entity.length;
+			if (entityLength <= maxDataFrameSize) {
+				// If the data size is smaller than maxDataFrameSize, send it in one DATA frame:
+				written.add(stream.data(new DataFrame(stream.getId(), trailers == null, entity)));
+			} else {
+				// If the data size is larger, send more DATA frames, each of them
+				// is a slice of the entity:
+				ByteBuf entityBuf = Unpooled.wrappedBuffer(entity);
+
+				int fragmentSize = (entityLength + maxDataFrameSize - 1) / maxDataFrameSize;
+
+				boolean endStreamFlag = false;
+				for (int i = 0; i < fragmentSize; i++) {
+					if (i == fragmentSize - 1) {
+						endStreamFlag = trailers == null;
+					} else {
+						endStreamFlag = false;
+					}
+					if (i == 0) {
+						// skip waiting:
+					} else {
+						if (waitSecondsSendingDataFrame > 0) {
+							try {
+								Thread.sleep(waitSecondsSendingDataFrame * 1000);
+							} catch (InterruptedException e) {
+								System.out.println("Failed to make the current thread to sleep: " + e);
+							}
+						}
+					}
+					int offset = i * maxDataFrameSize;
+					int length = Math.min(maxDataFrameSize, entityLength - offset);
+					written.add(stream.data(new DataFrame(stream.getId(), endStreamFlag, entityBuf.slice(offset, length))));
+				}
+
+			}
+
+		}
+
+		return CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0]));
+
+	}
+
+	/**
+	 * Send the trailers of the request, if any, once the DATA is written
+	 * 
+	 * @param stream
+	 * @param settingsMaxFrameSize
+	 * @return
+	 */
+	private CompletableFuture<Void> sendTrailers(Stream stream, int settingsMaxFrameSize) {
+		if (trailers == null || stream.getResponseFuture().isDone()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		try {
+			sendHeaderOrTrailer(stream, trailers, settingsMaxFrameSize, true);
+			stream.getConnection().flush();
+			return CompletableFuture.completedFuture(null);
+		} catch (ConnectionException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Wait until the DATA of the stream is written, or the response is
+	 * received before, e.g. when the peer doesn't need the whole body
+	 * 
+	 * @param stream
+	 * @param written
+	 * @param deadline
+	 * @return true if the DATA is written, false if the response has come first
+	 * @throws ConnectionException
+	 */
+	private static boolean awaitWritten(Stream stream, CompletableFuture<Void> written, long deadline)
+			throws ConnectionException {
+		CompletableFuture<Object> either = CompletableFuture.anyOf(written, stream.getResponseFuture());
+		try {
+			if (deadline == Long.MAX_VALUE) {
+				either.get();
+			} else {
+				either.get(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			}
+		} catch (TimeoutException | InterruptedException e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			throw new ConnectionException(ErrorCodeRegistry.CANCEL, "Failed to send the request body: " + e);
+		} catch (ExecutionException e) {
+			if (!written.isDone() || !written.isCompletedExceptionally()) {
+				// The response has failed, which is reported by waiting for it:
+				return false;
+			}
+			if (stream.getResponseFuture().isDone() && !stream.getResponseFuture().isCompletedExceptionally()) {
+				return false;
+			}
+			if (e.getCause() instanceof ConnectionException) {
+				throw (ConnectionException) e.getCause();
+			}
+			throw new ConnectionException(ErrorCodeRegistry.UNKNOWN, "Failed to send the request body", e.getCause());
+		}
+		return !written.isCompletedExceptionally() && written.isDone();
+	}
+
+	/**
+	 * Wait for the response of the stream until the deadline if any
+	 * 
+	 * @param stream
+	 * @param deadline
+	 * @return
+	 * @throws ConnectionException
+	 */
+	private static Http2Response awaitResponse(Stream stream, long deadline) throws ConnectionException {
+		if (deadline == Long.MAX_VALUE) {
+			return stream.getResponse();
+		}
+		return stream.getResponse(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wait for the connection to send the request on, e.g. while a managed
+	 * connection rolls over
+	 * 
+	 * @param selected
+	 * @param deadline
+	 * @return
+	 * @throws ConnectionException
+	 */
+	private static Connection awaitConnection(CompletableFuture<Connection> selected, long deadline)
+			throws ConnectionException {
+		try {
+			if (deadline == Long.MAX_VALUE) {
+				return selected.get();
+			}
+			return selected.get(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | InterruptedException e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			throw new ConnectionException(ErrorCodeRegistry.CANCEL, "Failed to get a connection: " + e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ConnectionException) {
+				throw (ConnectionException) e.getCause();
+			}
+			throw new ConnectionException(ErrorCodeRegistry.UNKNOWN, "Failed to get a connection", e.getCause());
+		}
+	}
+
+	/**
+	 * Wait until the request is admitted among the concurrent streams allowed
+	 * by the peer, or the timeout or the deadline is reached
+	 * 
+	 * @param connection
+	 * @param deadline
+	 * @throws ConnectionException
+	 */
+	private static void awaitAdmission(Connection connection, long deadline) throws ConnectionException {
+		int timeoutSeconds = Integer.getInteger("http2.stream.admission.timeout", 300);
+		long timeoutMillis = Math.min(timeoutSeconds * 1000L, deadline - System.currentTimeMillis());
+		CompletableFuture<Void> admission = connection.admitStream();
+		try {
+			admission.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | InterruptedException e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			// Give up waiting, unless admitted meanwhile:
+			if (admission.cancel(false)) {
+				throw new ConnectionException(ErrorCodeRegistry.CANCEL, "Failed to get a stream within "
+						+ Math.max(0, timeoutMillis) + " milliseconds: " + connection.admissionStats());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ConnectionException) {
+				throw (ConnectionException) e.getCause();
+			}
+			throw new ConnectionException(ErrorCodeRegistry.REFUSED_STREAM, "Failed to get a stream", e.getCause());
+		}
+	}
+
+	/**
+	 * Create a new stream and send the request headers on it. The peer expects
+	 * the stream identifiers in increasing order (RFC 7540, Section 5.1.1), so
+	 * no other stream may be created between the two.
+	 * 
+	 * @param connection
+	 * @param sendWindowUpdate
+	 * @param settingsMaxFrameSize
+	 * @return
+	 * @throws ConnectionException
+	 * @throws IOException
+	 */
+	private Stream openStream(Connection connection, boolean sendWindowUpdate, int settingsMaxFrameSize)
+			throws ConnectionException, IOException {
+		synchronized (connection) {
+			Stream stream = connection.newStream();
+			if (sendWindowUpdate) {
+				stream.addDefaultDataFrameConsumer();
+			}
+			try {
+				sendHeaderOrTrailer(stream, headers, settingsMaxFrameSize, entity == null);
+			} catch (ConnectionException e) {
+				stream.close();
+				throw e;
+			}
+			return stream;
+		}
+	}
+
 	/**
 	 * Send HEADERS frame for either HTTP headers or trailers
 	 * 
@@ -169,22 +555,32 @@ public final class Http2Request {
 	private static void sendHeaderOrTrailer(Stream stream, Http2Headers http2Headers, int settingsMaxFrameSize,
 			boolean endStream) throws ConnectionException {
 
-		byte[] headerBlock = http2Headers.toHeaderBlock();
-
-		List<byte[]> fragments = fragment(headerBlock, settingsMaxFrameSize);
-
-		if (fragments.size() > 1) {
-			HeadersFrame headersFrame = new HeadersFrame(stream.getId(), endStream, false, fragments.get(0));
-			stream.headers(headersFrame);
-			for (int i = 1; i < fragments.size() - 1; i++) {
-				ContinuationFrame cf = new ContinuationFrame(stream.getId(), false, fragments.get(i));
+		// The header blocks must reach the peer in the order they are encoded,
+		// since they share the dynamic table of the connection:
+		Connection connection = stream.getConnection();
+		synchronized (connection) {
+
+			// With the connection of the stream, which may not be the one the
+			// headers are built for:
+			ByteBuf headerBlock = connection.encode(http2Headers);
+
+			if (headerBlock.readableBytes() > settingsMaxFrameSize) {
+				// Each fragment is a slice of the header block:
+				HeadersFrame headersFrame = new HeadersFrame(stream.getId(), endStream, false,
+						headerBlock.readSlice(settingsMaxFrameSize));
+				stream.headers(headersFrame);
+				while (headerBlock.readableBytes() > settingsMaxFrameSize) {
+					ContinuationFrame cf = new ContinuationFrame(stream.getId(), false,
+							headerBlock.readSlice(settingsMaxFrameSize));
+					stream.continuation(cf);
+				}
+				ContinuationFrame cf = new ContinuationFrame(stream.getId(), true, headerBlock);
 				stream.continuation(cf);
+			} else {
+				HeadersFrame headersFrame = new HeadersFrame(stream.getId(), endStream, true, headerBlock);
+				stream.headers(headersFrame);
 			}
-			ContinuationFrame cf = new ContinuationFrame(stream.getId(), true, fragments.get(fragments.size() - 1));
-			stream.continuation(cf);
-		} else {
-			HeadersFrame headersFrame = new HeadersFrame(stream.getId(), endStream, true, headerBlock);
-			stream.headers(headersFrame);
+
 		}
 
 	}
@@ -237,6 +633,20 @@ public final class Http2Request {
 			return this;
 		}
 
+		/**
+		 * Give up the request if its response is not received within the
+		 * given time, counted from when it's sent. Once it's reached, the
+		 * stream is reset with CANCEL.
+		 * 
+		 * @param timeout
+		 * @param unit
+		 * @return
+		 */
+		public Builder timeout(long timeout, TimeUnit unit) {
+			request.timeoutMillis = unit.toMillis(timeout);
+			return this;
+		}
+
 		public Builder trailers(Header... headers) {
 			request.trailers = new Http2Headers(connection);
 			for (Header header : headers) {
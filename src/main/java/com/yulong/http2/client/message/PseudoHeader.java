@@ -3,6 +3,8 @@ package com.yulong.http2.client.message;
 import java.util.HashSet;
 import java.util.Set;
 
+import io.netty.util.AsciiString;
+
 public enum PseudoHeader {
 
 	METHOD(":method"), 
@@ -12,6 +14,7 @@ public enum PseudoHeader {
 	STATUS(":status");
 
 	private final String value;
+	private final AsciiString asciiValue;
 	private static final Set<String> PSEUDO_HEADERS = new HashSet<String>();
 
 	static {
@@ -22,12 +25,17 @@ public enum PseudoHeader {
 
 	PseudoHeader(String value) {
 		this.value = value;
+		this.asciiValue = AsciiString.cached(value);
 	}
 
 	public String value() {
 		return value;
 	}
 
+	public AsciiString asciiValue() {
+		return asciiValue;
+	}
+
 	public static boolean isPseudoHeader(String header) {
 		return PSEUDO_HEADERS.contains(header);
 	}
@@ -0,0 +1,175 @@
+package com.yulong.http2.client.netty;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import com.yulong.http2.client.common.StreamAdmissionStats;
+
+/**
+ * Keep the number of the streams we open within the SETTINGS_MAX_CONCURRENT_STREAMS
+ * of the peer (RFC 7540, Section 5.1.2). The requests beyond it wait in a FIFO
+ * queue, which drains as the active streams are closed, instead of being
+ * refused by the peer.
+ * <p>
+ * An admission reserves a place that the next stream created takes over, so
+ * that the stream can be created where its first HEADERS frame is sent.
+ * <p>
+ * It's accessed by any thread, so the accesses are synchronized. The futures
+ * are completed outside of the lock.
+ */
+public class Http2AdmissionController {
+
+	private final Queue<Waiter> waiters = new ArrayDeque<>();
+
+	private int limit = Integer.MAX_VALUE;
+	// Set once no stream can be admitted any more:
+	private Throwable failure;
+	private int active;
+	private int reserved;
+
+	// Metrics:
+	private long admitted;
+	private long queued;
+	private int maxQueueDepth;
+	private long totalWaitNanos;
+	private long maxWaitNanos;
+
+	/**
+	 * Wait for a place among the concurrent streams
+	 * 
+	 * @return a future completed once admitted
+	 */
+	CompletableFuture<Void> admit() {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		synchronized (this) {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+			} else if (waiters.isEmpty() && active + reserved < limit) {
+				reserved++;
+				admitted++;
+				future.complete(null);
+			} else {
+				waiters.add(new Waiter(future));
+				queued++;
+				maxQueueDepth = Math.max(maxQueueDepth, waiters.size());
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Count a new stream as active, in the place reserved by an admission if
+	 * any
+	 */
+	synchronized void opened() {
+		if (reserved > 0) {
+			reserved--;
+		}
+		active++;
+	}
+
+	/**
+	 * Release the place of an active stream which is closed
+	 */
+	void closed() {
+		List<CompletableFuture<Void>> ready;
+		synchronized (this) {
+			active--;
+			ready = drain();
+		}
+		completeAll(ready);
+	}
+
+	/**
+	 * Apply the SETTINGS_MAX_CONCURRENT_STREAMS of the peer
+	 * 
+	 * @param maxConcurrentStreams
+	 */
+	void setLimit(int maxConcurrentStreams) {
+		List<CompletableFuture<Void>> ready;
+		synchronized (this) {
+			// An unsigned value beyond the range of int means no limit:
+			limit = maxConcurrentStreams < 0 ? Integer.MAX_VALUE : maxConcurrentStreams;
+			ready = drain();
+		}
+		completeAll(ready);
+	}
+
+	/**
+	 * Fail the requests still waiting and the ones to come, e.g. when the
+	 * connection is lost or going away
+	 * 
+	 * @param cause
+	 */
+	void failAll(Throwable cause) {
+		List<Waiter> failed;
+		synchronized (this) {
+			if (failure == null) {
+				failure = cause;
+			}
+			failed = new ArrayList<>(waiters);
+			waiters.clear();
+		}
+		for (Waiter waiter : failed) {
+			waiter.future.completeExceptionally(cause);
+		}
+	}
+
+	synchronized StreamAdmissionStats stats() {
+		return new StreamAdmissionStats(limit, active, waiters.size(), maxQueueDepth, admitted, queued,
+				totalWaitNanos, maxWaitNanos);
+	}
+
+	/**
+	 * Take the waiters that fit in the limit, skipping the ones given up
+	 * 
+	 * @return
+	 */
+	private List<CompletableFuture<Void>> drain() {
+		List<CompletableFuture<Void>> ready = new ArrayList<>();
+		long now = System.nanoTime();
+		while (!waiters.isEmpty() && active + reserved < limit) {
+			Waiter waiter = waiters.poll();
+			if (waiter.future.isDone()) {
+				continue;
+			}
+			reserved++;
+			admitted++;
+			long waitNanos = now - waiter.queuedAt;
+			totalWaitNanos += waitNanos;
+			maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+			ready.add(waiter.future);
+		}
+		return ready;
+	}
+
+	private void completeAll(List<CompletableFuture<Void>> ready) {
+		for (CompletableFuture<Void> future : ready) {
+			if (!future.complete(null)) {
+				// Given up meanwhile, give the place to the next one:
+				List<CompletableFuture<Void>> next;
+				synchronized (this) {
+					reserved--;
+					admitted--;
+					next = drain();
+				}
+				completeAll(next);
+			}
+		}
+	}
+
+	private static class Waiter {
+
+		private final CompletableFuture<Void> future;
+		private final long queuedAt = System.nanoTime();
+
+		private Waiter(CompletableFuture<Void> future) {
+			this.future = future;
+		}
+
+	}
+
+}
@@ -3,7 +3,6 @@ package com.yulong.http2.client.netty;
 import javax.net.ssl.SSLException;
 
 import io.netty.channel.ChannelPromise;
-import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http2.Http2SecurityUtil;
 import io.netty.handler.ssl.ApplicationProtocolConfig;
@@ -28,15 +27,12 @@ public class Http2AlpnInitializer extends Http2Initializer {
 	private final SslContext sslCtx;
 	private final String host;
 	private final int port;
-	private final EventLoopGroup eventLoopGroup;
 
-	public Http2AlpnInitializer(String host, int port, ConnectionConfig config, EventLoopGroup eventLoopGroup)
-			throws Http2StartingException {
+	public Http2AlpnInitializer(String host, int port, ConnectionConfig config) throws Http2StartingException {
 
 		super(config);
 		this.host = host;
 		this.port = port;
-		this.eventLoopGroup = eventLoopGroup;
 		SslProvider provider = OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK;
 		try {
 			sslCtx = SslContextBuilder.forClient().sslProvider(provider)
@@ -65,7 +61,7 @@ public class Http2AlpnInitializer extends Http2Initializer {
 	@Override
 	protected void configure(SocketChannel ch) {
 		ChannelPromise http2InUsePromise = ch.newPromise();
-		this.frameHandler = new Http2FrameHandler(http2InUsePromise, host, port, "https", config, eventLoopGroup);
+		this.frameHandler = new Http2FrameHandler(http2InUsePromise, host, port, "https", config);
 		ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()));
 	}
 
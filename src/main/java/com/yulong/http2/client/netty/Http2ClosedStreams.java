@@ -0,0 +1,73 @@
+package com.yulong.http2.client.netty;
+
+import java.util.BitSet;
+
+/**
+ * The streams removed from the connection once closed. As the identifiers are
+ * used in increasing order by each endpoint, a stream is known to be closed if
+ * its identifier is not above the highest one used by its initiator and it's
+ * no longer active, so only these two identifiers are kept. The streams closed
+ * by a RST_STREAM are recorded in a bit set covering the most recent
+ * identifiers, so that the frames still in flight for them are ignored rather
+ * than treated as errors.
+ * <p>
+ * It's changed in the event loop and read by any thread.
+ */
+public class Http2ClosedStreams {
+
+	// The number of the most recent stream identifiers remembered as reset:
+	private static final int RESET_HISTORY = Integer.getInteger("http2.reset.stream.history", 65536);
+
+	private int highestClientStreamId;
+	private int highestServerStreamId;
+
+	// The bit i is set if the stream (base + i) has been reset:
+	private BitSet reset = new BitSet();
+	private int base = 1;
+
+	/**
+	 * Record a stream that is removed from the connection
+	 * 
+	 * @param streamId
+	 * @param reset
+	 *            if the stream is closed by a RST_STREAM
+	 */
+	synchronized void add(int streamId, boolean reset) {
+		if (streamId % 2 == 1) {
+			highestClientStreamId = Math.max(highestClientStreamId, streamId);
+		} else {
+			highestServerStreamId = Math.max(highestServerStreamId, streamId);
+		}
+		if (reset && streamId >= base) {
+			if (streamId - base >= 2 * RESET_HISTORY) {
+				// Forget the oldest ones, half the history at a time:
+				int newBase = streamId - RESET_HISTORY;
+				this.reset = this.reset.get(newBase - base, Math.max(newBase - base, this.reset.length()));
+				base = newBase;
+			}
+			this.reset.set(streamId - base);
+		}
+	}
+
+	/**
+	 * If the stream, no longer in the connection, has been used and closed
+	 * 
+	 * @param streamId
+	 * @return
+	 */
+	synchronized boolean contains(int streamId) {
+		return streamId <= (streamId % 2 == 1 ? highestClientStreamId : highestServerStreamId);
+	}
+
+	/**
+	 * If the stream, no longer in the connection, has been closed by a
+	 * RST_STREAM recently
+	 * 
+	 * @param streamId
+	 * @return
+	 */
+	synchronized boolean isReset(int streamId) {
+		return streamId >= base && reset.get(streamId - base);
+	}
+
+}
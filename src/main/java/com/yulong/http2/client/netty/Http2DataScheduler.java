@@ -0,0 +1,140 @@
+package com.yulong.http2.client.netty;
+
+/**
+ * Share the connection flow-control window among the streams with pending
+ * DATA following the weights and dependencies of the priority tree (RFC 7540,
+ * Section 5.3).
+ * <p>
+ * It's a weighted fair queuing over the tree: each stream has a virtual time
+ * which advances by the bytes it sends divided by its weight, and among the
+ * siblings able to send the one with the smallest virtual time is served next,
+ * at most a quantum of bytes at a time. A stream able to send is served before
+ * its dependents, which only get the window their parent can't use.
+ * <p>
+ * It's only accessed in the event loop of the connection.
+ */
+public class Http2DataScheduler {
+
+	// Keeps the virtual time increments integral for the weights 1 to 256:
+	private static final long WEIGHT_SCALE = 256;
+
+	private final Http2FrameHandler connection;
+	private final int quantum;
+	// Incremented on each scheduling, used to skip the streams that could not
+	// make progress:
+	private int round;
+
+	Http2DataScheduler(Http2FrameHandler connection, int quantum) {
+		this.connection = connection;
+		this.quantum = quantum;
+	}
+
+	/**
+	 * Write the pending DATA of the streams until the connection window is
+	 * used up or no stream is able to send
+	 */
+	void schedule() {
+
+		NettyStream root = connection.getConnectionStream();
+		round++;
+		updateActive(root);
+
+		while (root.active) {
+
+			NettyStream stream = next(root);
+			if (stream == null) {
+				// Some window has changed since the activity was computed:
+				updateActive(root);
+				continue;
+			}
+
+			int limit = Math.min(quantum, connection.getWindow().availableSize());
+			int written = stream.writePendingData(limit);
+			if (written == 0) {
+				stream.stalledRound = round;
+			} else {
+				for (NettyStream node = stream; node != root; node = node.parent()) {
+					node.virtualTime += written * WEIGHT_SCALE / node.getWeight();
+				}
+			}
+
+			// Refresh the activity along the path to the root:
+			for (NettyStream node = stream; node != null; node = node.parent()) {
+				boolean wasActive = node.active;
+				setActive(node, isActive(node));
+				if (node != stream && wasActive == node.active) {
+					break;
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * Descend the tree to the stream to serve next
+	 * 
+	 * @param root
+	 * @return null if the activity of the tree is out of date
+	 */
+	private NettyStream next(NettyStream root) {
+		NettyStream node = root;
+		while (node == root || !isWritable(node)) {
+			NettyStream next = null;
+			for (NettyStream child : node.dependentStreams()) {
+				if (child.active && (next == null || child.virtualTime < next.virtualTime)) {
+					next = child;
+				}
+			}
+			if (next == null) {
+				return null;
+			}
+			node.childrenVirtualTime = next.virtualTime;
+			node = next;
+		}
+		return node;
+	}
+
+	private boolean updateActive(NettyStream node) {
+		boolean active = isWritable(node);
+		for (NettyStream child : node.dependentStreams()) {
+			active |= updateActive(child);
+		}
+		setActive(node, active);
+		return active;
+	}
+
+	private boolean isActive(NettyStream node) {
+		if (isWritable(node)) {
+			return true;
+		}
+		for (NettyStream child : node.dependentStreams()) {
+			if (child.active) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void setActive(NettyStream node, boolean active) {
+		if (active && !node.active && node.parent() != null) {
+			// A stream back from idleness doesn't get credit for the time it
+			// wasn't competing:
+			node.virtualTime = Math.max(node.virtualTime, node.parent().childrenVirtualTime);
+		}
+		node.active = active;
+	}
+
+	private boolean isWritable(NettyStream stream) {
+		if (stream.stalledRound == round) {
+			return false;
+		}
+		int needed = stream.pendingDataNeeded();
+		if (needed < 0) {
+			return false;
+		}
+		return needed == 0 || stream.getWindow().availableSize() >= needed
+				&& connection.getWindow().availableSize() >= needed;
+	}
+
+}
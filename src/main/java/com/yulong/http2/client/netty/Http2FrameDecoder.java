@@ -2,7 +2,6 @@ package com.yulong.http2.client.netty;
 
 import static com.yulong.http2.client.utils.Debug.debugOctet;
 import static com.yulong.http2.client.utils.LogUtil.log;
-import static com.yulong.http2.client.utils.Utils.toInt;
 
 import java.util.List;
 
@@ -10,13 +9,31 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.common.ErrorCodeRegistry;
 import com.yulong.http2.client.frame.Frame;
+import com.yulong.http2.client.frame.FrameType;
 
 /**
  * Decode the received bytes into Frame object
  */
 public class Http2FrameDecoder extends ByteToMessageDecoder {
 
+	private final boolean zeroCopy;
+
+	public Http2FrameDecoder() {
+		this(false);
+	}
+
+	/**
+	 * @param zeroCopy
+	 *            if true, the payload of each frame is a retained slice of the
+	 *            inbound buffer instead of a copy. The frame must be released
+	 *            once it's consumed.
+	 */
+	public Http2FrameDecoder(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws ConnectionException {
 
@@ -26,15 +43,34 @@ public class Http2FrameDecoder extends ByteToMessageDecoder {
 			return;
 		}
 
-		int payloadLength = toInt(in.nioBuffer(), 0, 3);
+		int payloadLength = in.getUnsignedMedium(in.readerIndex());
 		if (in.readableBytes() < 9 + payloadLength) {
 			return;
 		}
 
-		byte[] bytes = new byte[9 + payloadLength];
-		in.readBytes(bytes);
-		Frame rawFrame = new Frame(bytes);
-		out.add(rawFrame);
+		if (zeroCopy) {
+
+			in.skipBytes(3);
+			byte type = in.readByte();
+			byte flags = in.readByte();
+			int streamId = in.readInt();
+
+			FrameType frameType = FrameType.from(type);
+			if (frameType == FrameType.UNKNOWN) {
+				in.skipBytes(payloadLength);
+				throw new ConnectionException(ErrorCodeRegistry.PROTOCOL_ERROR, "Unknown frame type code: " + type);
+			}
+
+			out.add(new Frame(payloadLength, frameType, flags, streamId, in.readRetainedSlice(payloadLength)));
+
+		} else {
+
+			byte[] bytes = new byte[9 + payloadLength];
+			in.readBytes(bytes);
+			Frame rawFrame = new Frame(bytes);
+			out.add(rawFrame);
+
+		}
 
 	}
 
@@ -0,0 +1,42 @@
+package com.yulong.http2.client.netty;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import com.yulong.http2.client.frame.Frame;
+
+/**
+ * Encode the Frame object into bytes. The frame header is written into a
+ * direct buffer taken from the channel's allocator. A small payload is written
+ * into the same buffer while a large one is appended as a component of a
+ * CompositeByteBuf without being copied.
+ */
+public class Http2FrameEncoder extends MessageToMessageEncoder<Frame> {
+
+	private final int compositeThreshold = Integer.getInteger("http2.encoder.composite.threshold", 1024);
+
+	@Override
+	protected void encode(ChannelHandlerContext ctx, Frame frame, List<Object> out) {
+
+		ByteBuf payload = frame.content();
+		int payloadSize = payload.readableBytes();
+
+		if (payloadSize < compositeThreshold) {
+			ByteBuf buf = ctx.alloc().directBuffer(9 + payloadSize);
+			frame.writeHeader(buf);
+			buf.writeBytes(payload, payload.readerIndex(), payloadSize);
+			out.add(buf);
+		} else {
+			ByteBuf header = ctx.alloc().directBuffer(9);
+			frame.writeHeader(header);
+			CompositeByteBuf buf = ctx.alloc().compositeDirectBuffer(2);
+			buf.addComponents(true, header, payload.retainedSlice());
+			out.add(buf);
+		}
+
+	}
+
+}
@@ -4,30 +4,36 @@ import static com.yulong.http2.client.common.Constants.CONNECTION_STREAM_ID;
 import static com.yulong.http2.client.utils.Debug.debugFrame;
 import static com.yulong.http2.client.utils.Debug.debugRequest;
 import static com.yulong.http2.client.utils.LogUtil.log;
-import static com.yulong.http2.client.utils.Utils.bytes2String;
-import static com.yulong.http2.client.utils.Utils.string2Bytes;
 import static com.yulong.http2.client.utils.Utils.toHexString;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
-import com.twitter.hpack.Decoder;
-import com.twitter.hpack.Encoder;
-import com.twitter.hpack.HeaderListener;
-
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
-import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
 import com.yulong.http2.client.Connection;
 import com.yulong.http2.client.ConnectionConfig;
 import com.yulong.http2.client.ConnectionException;
@@ -37,8 +43,10 @@ import com.yulong.http2.client.Stream.State;
 import com.yulong.http2.client.StreamException;
 import com.yulong.http2.client.common.ErrorCodeRegistry;
 import com.yulong.http2.client.common.FlowControlWindow;
+import com.yulong.http2.client.common.ReceiveWindow;
 import com.yulong.http2.client.common.Http2Settings;
 import com.yulong.http2.client.common.SettingsRegistry;
+import com.yulong.http2.client.common.StreamAdmissionStats;
 import com.yulong.http2.client.frame.Continuable;
 import com.yulong.http2.client.frame.ContinuationFrame;
 import com.yulong.http2.client.frame.DataFrame;
@@ -53,8 +61,10 @@ import com.yulong.http2.client.frame.PushPromiseFrame;
 import com.yulong.http2.client.frame.ResetFrame;
 import com.yulong.http2.client.frame.SettingsFrame;
 import com.yulong.http2.client.frame.WindowUpdateFrame;
-import com.yulong.http2.client.message.Header;
+import com.yulong.http2.client.hpack.HpackDecoder;
+import com.yulong.http2.client.hpack.HpackEncoder;
 import com.yulong.http2.client.message.Http2Headers;
+import com.yulong.http2.client.netty.Http2StreamTransitions.Event;
 
 /**
  * The main class to process the received Frame objects and wrap them into more
@@ -69,11 +79,22 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 	private ChannelHandlerContext ctx;
 	private final ConnectionConfig config;
 
-	private ConcurrentHashMap<Integer, NettyStream> streams = new ConcurrentHashMap<>();
+	private final Http2StreamRegistry streams = new Http2StreamRegistry();
+	// The streams removed from the map once closed:
+	private final Http2ClosedStreams closedStreams = new Http2ClosedStreams();
+	// The streams we open are limited by the peer:
+	private final Http2AdmissionController admission = new Http2AdmissionController();
 	private final AtomicInteger localCurrentStreamId = new AtomicInteger(3);
 	private final AtomicInteger lastReceivedStreamId = new AtomicInteger();
 	private final AtomicReference<GoAwayFrame> lastReceivedGoAwayFrame = new AtomicReference<>(null);
 	private final AtomicBoolean closed = new AtomicBoolean(false);
+	// No new stream is taken once set, the connection is closed when the
+	// active ones are done:
+	private volatile boolean draining = false;
+	private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+	// The callbacks run once no new stream is taken, by stream ID reserve:
+	private final ConcurrentMap<Runnable, Integer> drainCallbacks = new ConcurrentHashMap<>();
+	private final CompletableFuture<Void> prefaceSent = new CompletableFuture<>();
 
 	private final ChannelPromise http2InUsePromise;
 
@@ -83,6 +104,12 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 	private ChannelPromise pingPromise;
 	private PingFrame lastResponsePingFrame;
 
+	// The frames written by other threads and not yet run in the event loop:
+	private final AtomicInteger queuedWrites = new AtomicInteger();
+	// Only accessed in the event loop:
+	private boolean flushScheduled = false;
+	private int pendingFlushBytes = 0;
+
 	private Frame lastReceivedFrame = null;
 	private Frame currentReceivedFrame = null;
 
@@ -91,26 +118,49 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 	// The settings sent to server
 	private final Http2Settings settingsRequiredByLocal = new Http2Settings();
 
-	private Decoder decoder;
-	private Encoder encoder;
+	// The HPACK contexts live as long as the connection does:
+	private final HpackDecoder decoder;
+	private final HpackEncoder encoder;
+	// The header table sizes required by the peer but not yet signaled to it,
+	// guarded by the encoder:
+	private int pendingEncoderTableSize = -1;
+	private int minPendingEncoderTableSize = -1;
+
+	// The SETTINGS_MAX_HEADER_LIST_SIZE enforced on the received header blocks:
+	private long maxHeaderListSize;
+
+	// The SETTINGS frames sent but not yet acknowledged, only accessed in the
+	// event loop:
+	private final Queue<SettingsFrame> unackedSettings = new ArrayDeque<>();
+	// The ones among them sent by the window tuner rather than the user:
+	private final Set<SettingsFrame> internalSettings = Collections.newSetFromMap(new IdentityHashMap<>());
 
 	private final NettyStream connectionStream;
-	private final EventLoopGroup eventLoopGroup;
 
 	private final FlowControlWindow window;
+	private final ReceiveWindow receiveWindow;
+	private final Http2DataScheduler dataScheduler;
+	private final Http2WindowTuner windowTuner;
 
 	public Http2FrameHandler(ChannelPromise http2InUsePromise, String host, int port, String scheme,
-			ConnectionConfig config, EventLoopGroup eventLoopGroup) {
+			ConnectionConfig config) {
 		this.host = host;
 		this.port = port;
 		this.scheme = scheme;
 		this.http2InUsePromise = http2InUsePromise;
 		this.config = config;
-		generateDecoder();
-		generateEncoder();
+		this.decoder = new HpackDecoder(settingsRequiredByLocal.getHeaderTableSize());
+		this.encoder = new HpackEncoder(settingsRequiredByRemote.getHeaderTableSize());
+		this.maxHeaderListSize = config.getMaxHeaderListSize();
 		this.connectionStream = new NettyStream(this, CONNECTION_STREAM_ID, State.OPEN);
-		this.eventLoopGroup = eventLoopGroup;
 		this.window = new FlowControlWindow(CONNECTION_STREAM_ID, currentSettings().getInitialWindowSize());
+		// The connection window is only changed by WINDOW_UPDATE, never by SETTINGS:
+		this.receiveWindow = new ReceiveWindow(CONNECTION_STREAM_ID, settingsRequiredByLocal.getInitialWindowSize(),
+				config.getWindowUpdateRatio());
+		this.dataScheduler = new Http2DataScheduler(this, config.getDataSchedulingQuantum());
+		this.windowTuner = config.isReceiveWindowAutoTuning()
+				? new Http2WindowTuner(this, receiveWindow.getSize(), config.getMaxReceiveWindowSize())
+				: null;
 	}
 
 	@Override
@@ -118,13 +168,25 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		this.ctx = ctx;
 		if (config.getConnectionPreface() != null) {
 			log("Sending connection preface: " + toHexString(config.getConnectionPreface()));
-			this.ctx.writeAndFlush(Unpooled.copiedBuffer(config.getConnectionPreface()));
+			this.ctx.writeAndFlush(Unpooled.wrappedBuffer(config.getConnectionPreface()));
 		}
+		prefaceSent.complete(null);
 	}
 
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 		this.closed.compareAndSet(false, true);
+		ConnectionException lost = new ConnectionException(ErrorCodeRegistry.UNKNOWN, "The connection is closed");
+		for (NettyStream stream : streams.values()) {
+			stream.failResponse(lost);
+			// The streams still open are never reclaimed otherwise:
+			if (streams.remove(stream.getId(), stream)) {
+				stream.onConnectionLost();
+			}
+		}
+		admission.failAll(lost);
+		closeFuture.complete(null);
+		checkDraining();
 		log("channel is closed from server, disconnecting ...");
 		disconnect();
 	}
@@ -163,6 +225,27 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 
 		lastReceivedStreamId.set(rawFrame.getStreamId());
 
+		try {
+			dispatch(rawFrame);
+		} finally {
+			// The frames are consumed synchronously, so release the inbound
+			// buffers behind them if any:
+			rawFrame.release();
+			if (currentReceivedFrame != null) {
+				currentReceivedFrame.release();
+			}
+		}
+
+	}
+
+	/**
+	 * Wrap the raw frame into the specific frame type and process it
+	 * 
+	 * @param rawFrame
+	 * @throws ConnectionException
+	 */
+	private void dispatch(Frame rawFrame) throws ConnectionException {
+
 		switch (rawFrame.getType()) {
 		case DATA:
 			preprocess(new DataFrame(rawFrame));
@@ -220,6 +303,17 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 	 */
 	@Override
 	public void send(Frame frame) throws ConnectionException {
+		sendFrame(frame);
+	}
+
+	/**
+	 * Send the frame and return the future of its write
+	 * 
+	 * @param frame
+	 * @return
+	 * @throws ConnectionException
+	 */
+	ChannelFuture sendFrame(Frame frame) throws ConnectionException {
 
 		debugFrame(() -> ">> " + frame);
 
@@ -229,17 +323,51 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 
 		if (frame instanceof SettingsFrame) {
 			this.settingsPromise = ctx.newPromise();
+			SettingsFrame settingsFrame = (SettingsFrame) frame;
+			if (!settingsFrame.isAck()) {
+				runInEventLoop(() -> unackedSettings.add(settingsFrame));
+			}
 		}
 
 		if (frame.getStreamId() > 0) {
-			Stream stream = getStream(frame.getStreamId());
+			NettyStream stream = streams.get(frame.getStreamId());
 			if (stream != null && stream.getState() == State.RESET_REMOTE) {
 				throw new ConnectionException(ErrorCodeRegistry.UNKNOWN,
 						"Unable to send frame because the stream is reset by peer: " + stream.resetByPeer());
 			}
+			if (stream == null && !(frame instanceof ResetFrame) && closedStreams.isReset(frame.getStreamId())) {
+				throw new ConnectionException(ErrorCodeRegistry.UNKNOWN,
+						"Unable to send frame because the stream is reset: " + frame.getStreamId());
+			}
+		}
+
+		return writeFrame(frame);
+
+	}
+
+	/**
+	 * Send a PING or SETTINGS frame of our own, without taking the place of the
+	 * ones sent by the user in waiting for the acknowledgement. It's called in
+	 * the event loop.
+	 * 
+	 * @param frame
+	 */
+	void sendInternal(Frame frame) {
+
+		debugFrame(() -> ">> " + frame);
+
+		if (frame instanceof SettingsFrame) {
+			unackedSettings.add((SettingsFrame) frame);
+			internalSettings.add((SettingsFrame) frame);
 		}
 
-		ChannelFuture f = ctx.writeAndFlush(Unpooled.copiedBuffer(frame.asBytes()));
+		writeFrame(frame);
+
+	}
+
+	private ChannelFuture writeFrame(Frame frame) {
+
+		ChannelFuture f = write(frame);
 
 		f.addListener(future -> {
 			if (!future.isSuccess()) {
@@ -247,6 +375,45 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 			}
 		});
 
+		return f;
+
+	}
+
+	/**
+	 * Flush the frames written so far
+	 */
+	@Override
+	public void flush() {
+		runInEventLoop(this::flushNow);
+	}
+
+	/**
+	 * Run the task in the event loop of the connection, right away if called
+	 * from it
+	 * 
+	 * @param task
+	 */
+	void runInEventLoop(Runnable task) {
+		if (ctx.executor().inEventLoop()) {
+			task.run();
+		} else {
+			ctx.executor().execute(task);
+		}
+	}
+
+	/**
+	 * Run a task completing a future given to the user, on the callback
+	 * executor of the config, or right away in the event loop if there is none
+	 * 
+	 * @param task
+	 */
+	void runCallback(Runnable task) {
+		Executor callbackExecutor = config.getCallbackExecutor();
+		if (callbackExecutor == null) {
+			task.run();
+		} else {
+			callbackExecutor.execute(task);
+		}
 	}
 
 	/**
@@ -271,6 +438,11 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		return stream;
 	}
 
+	@Override
+	public NettyStream findStream(int streamId) {
+		return streamId == CONNECTION_STREAM_ID ? getConnectionStream() : streams.get(streamId);
+	}
+
 	/**
 	 * Get the connection control stream whose stream id is 0
 	 * 
@@ -298,10 +470,8 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 			}
 			throw new ConnectionException(ErrorCodeRegistry.SETTINGS_TIMEOUT, "Timed out waiting for settings");
 		}
-		// The acknowledged SETTINGS frame has been received and we need to set
-		// the settings:
-		settingsRequiredByLocal.setFrom(settingsFrame);
-		generateEncoder();
+		// The settings have been applied in the event loop upon receiving the
+		// acknowledgement:
 		return this.lastResponseSettingsFrame;
 	}
 
@@ -338,12 +508,14 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 			GoAwayFrame goAwayFrame = new GoAwayFrame(lastReceivedStreamId.get(), errorCode, debugData);
 			try {
 				send(goAwayFrame);
+				flush();
 			} catch (ConnectionException e) {
 				log(e);
 			}
 			log("disconnecting from client ...");
 			disconnect();
 			closed.compareAndSet(false, true);
+			checkDraining();
 		}
 	}
 
@@ -368,71 +540,226 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		NettyStream stream = new NettyStream(this, localCurrentStreamId.getAndAdd(2));
 		if (streams.putIfAbsent(stream.getId(), stream) == null) {
 			// This is a new stream:
-			stream.setState(State.IDLE);
+			admission.opened();
 		}
+		checkDraining();
 		return stream;
 	}
 
 	/**
-	 * Return the connection's settings
+	 * Register the stream 1 of the upgrade, on which the response to the
+	 * HTTP/1.1 request comes (RFC 7540, Section 3.2). The request has been
+	 * sent, so it's half-closed (local), and it's one of our streams as far
+	 * as the admission goes.
+	 * 
+	 * @return
+	 */
+	private NettyStream upgradeStream() {
+		NettyStream stream = new NettyStream(this, 1);
+		stream.transition(Event.SEND_UPGRADE_REQUEST);
+		stream.addDefaultDataFrameConsumer();
+		NettyStream existing = streams.putIfAbsent(1, stream);
+		if (existing != null) {
+			return existing;
+		}
+		admission.opened();
+		return stream;
+	}
+
+	/**
+	 * If new streams can still be opened on the connection
 	 * 
 	 * @return
 	 */
 	@Override
-	public Http2Settings currentSettings() {
-		return this.settingsRequiredByRemote;
+	public boolean acceptsNewStreams() {
+		return !draining && canOpen(localCurrentStreamId.get());
 	}
 
 	/**
-	 * Decode the given header block using the current Decoder instance
+	 * If the given stream of ours may be opened: the peer ignores the streams
+	 * opened after its GOAWAY, and the identifiers must not wrap around
 	 * 
-	 * @param headerBlock
+	 * @param streamId
 	 * @return
-	 * @throws ConnectionException
+	 */
+	boolean canOpen(int streamId) {
+		return streamId > 0 && !closed.get() && lastReceivedGoAwayFrame.get() == null;
+	}
+
+	/**
+	 * The number of the stream identifiers left to us
+	 * 
+	 * @return
+	 */
+	@Override
+	public int remainingStreamIds() {
+		int next = localCurrentStreamId.get();
+		return next > 0 ? (Integer.MAX_VALUE - next) / 2 + 1 : 0;
+	}
+
+	@Override
+	public CompletableFuture<Connection> selectConnection() {
+		return CompletableFuture.completedFuture(this);
+	}
+
+	/**
+	 * Take no new stream, and close the connection gracefully once the active
+	 * streams are done
+	 * 
+	 * @return a future completed once the connection is closed
 	 */
 	@Override
-	public Http2Headers decode(byte[] headerBlock) throws ConnectionException {
+	public CompletableFuture<Void> shutdown() {
+		draining = true;
+		checkDraining();
+		runInEventLoop(this::closeIfDrained);
+		return closeFuture;
+	}
 
-		try (ByteArrayInputStream in = new ByteArrayInputStream(headerBlock)) {
-			final Http2Headers headers = new Http2Headers(this);
+	@Override
+	public void whenDraining(int streamIdReserve, Runnable callback) {
+		drainCallbacks.put(callback, streamIdReserve);
+		checkDraining();
+	}
 
-			decoder.decode(in, new HeaderListener() {
-				@Override
-				public void addHeader(byte[] key, byte[] value, boolean sensitive) {
-					headers.add(bytes2String(key), new String(value));
+	/**
+	 * Run the callbacks of whenDraining() which are due, each once
+	 */
+	private void checkDraining() {
+		if (drainCallbacks.isEmpty()) {
+			return;
+		}
+		boolean draining = !acceptsNewStreams();
+		int remaining = remainingStreamIds();
+		for (Map.Entry<Runnable, Integer> entry : drainCallbacks.entrySet()) {
+			if ((draining || remaining < entry.getValue())
+					&& drainCallbacks.remove(entry.getKey(), entry.getValue())) {
+				try {
+					entry.getKey().run();
+				} catch (RuntimeException e) {
+					log("Drain callback failed: " + e);
 				}
-			});
+			}
+		}
+	}
+
+	private void closeIfDrained() {
+		if (draining && streams.size() == 0) {
+			close();
+		}
+	}
 
-			decoder.endHeaderBlock();
+	/**
+	 * Wait for a place among the concurrent streams allowed by the peer
+	 * 
+	 * @return
+	 */
+	@Override
+	public CompletableFuture<Void> admitStream() {
+		return admission.admit();
+	}
 
-			return headers;
-		} catch (IOException e) {
-			throw new ConnectionException(ErrorCodeRegistry.COMPRESSION_ERROR, e.getMessage(), e);
+	/**
+	 * Create a new stream once admitted
+	 * 
+	 * @return
+	 */
+	@Override
+	public CompletableFuture<Stream> newStreamAsync() {
+		Executor callbackExecutor = config.getCallbackExecutor();
+		if (callbackExecutor == null) {
+			return admission.admit().thenApply(admitted -> newStream());
 		}
+		return admission.admit().thenApplyAsync(admitted -> newStream(), callbackExecutor);
+	}
+
+	@Override
+	public StreamAdmissionStats admissionStats() {
+		return admission.stats();
+	}
+
+	/**
+	 * Return the connection's settings
+	 * 
+	 * @return
+	 */
+	@Override
+	public Http2Settings currentSettings() {
+		return this.settingsRequiredByRemote;
+	}
 
+	/**
+	 * Decode the given header block using the HPACK context of the connection
+	 * 
+	 * @param headerBlock
+	 * @return
+	 * @throws ConnectionException
+	 */
+	@Override
+	public Http2Headers decode(ByteBuf headerBlock) throws ConnectionException {
+		Http2Headers headers = new Http2Headers(this);
+		if (!decoder.decode(headerBlock, headers, maxHeaderListSize)) {
+			throw new ConnectionException(ErrorCodeRegistry.PROTOCOL_ERROR,
+					"Header list size exceeds SETTINGS_MAX_HEADER_LIST_SIZE(" + maxHeaderListSize + ")");
+		}
+		return headers;
 	}
 
 	/**
-	 * Encode the given headers using the current Encoder instance
+	 * Decode a fragment of the header block received on the given stream as
+	 * soon as it arrives, the fragments are never reassembled
+	 * 
+	 * @param streamId
+	 * @param fragment
+	 * @param first if it comes from a HEADERS or PUSH_PROMISE frame
+	 * @param endHeaders if it is the last fragment of the block
+	 * @return the headers after the last fragment, null otherwise
+	 * @throws ConnectionException
+	 */
+	Http2Headers decodeHeaderBlockFragment(int streamId, ByteBuf fragment, boolean first, boolean endHeaders)
+			throws ConnectionException {
+		if (first) {
+			decoder.beginHeaderBlock(new Http2Headers(this), maxHeaderListSize);
+		}
+		decoder.decodeFragment(fragment);
+		if (!endHeaders) {
+			return null;
+		}
+		Http2Headers headers = decoder.getHeaders();
+		if (!decoder.endHeaderBlock()) {
+			throw new StreamException(streamId, ErrorCodeRegistry.PROTOCOL_ERROR,
+					"Header list size exceeds SETTINGS_MAX_HEADER_LIST_SIZE(" + maxHeaderListSize + ")");
+		}
+		return headers;
+	}
+
+	/**
+	 * Encode the given headers using the HPACK context of the connection
 	 * 
 	 * @param headers
 	 * @return
 	 */
 	@Override
-	public byte[] encode(Http2Headers headers) {
+	public ByteBuf encode(Http2Headers headers) {
 
 		debugRequest(headers);
 
-		try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-			for (Header header : headers.all()) {
-				String headerName = header.getName().toLowerCase();
-				boolean sensitive = headerName.matches("(cookie|set-cookie|sensitive-).*");
-				encoder.encodeHeader(out, string2Bytes(headerName), header.getValue().getBytes(), sensitive);
+		ByteBuf out = Unpooled.buffer(headers.size() * 16);
+		synchronized (encoder) {
+			// Dynamic table size updates must come at the beginning of the
+			// first header block after the change (RFC 7541, Section 4.2):
+			if (pendingEncoderTableSize >= 0) {
+				if (minPendingEncoderTableSize < pendingEncoderTableSize) {
+					encoder.setMaxHeaderTableSize(out, minPendingEncoderTableSize);
+				}
+				encoder.setMaxHeaderTableSize(out, pendingEncoderTableSize);
+				pendingEncoderTableSize = -1;
+				minPendingEncoderTableSize = -1;
 			}
-			return out.toByteArray();
-		} catch (IOException e) {
-			return null;
+			encoder.encodeHeaders(out, headers);
 		}
+		return out;
 
 	}
 
@@ -485,6 +812,33 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		return scheme;
 	}
 
+	/**
+	 * Get the future completed once our connection preface is written, so
+	 * that the frames written afterwards follow it on the wire
+	 * 
+	 * @return
+	 */
+	public CompletableFuture<Void> prefaceSent() {
+		return prefaceSent;
+	}
+
+	/**
+	 * Get the future completed once the peer has acknowledged our connection
+	 * preface, or failed if the upgrade fails or the timeout is reached first
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public ChannelFuture confirmation(long timeout, TimeUnit unit) {
+		ScheduledFuture<?> timer = http2InUsePromise.channel().eventLoop().schedule(
+				() -> http2InUsePromise
+						.tryFailure(new Http2StartingException("Timed out waiting for the reply of connection preface")),
+				timeout, unit);
+		http2InUsePromise.addListener(future -> timer.cancel(false));
+		return http2InUsePromise;
+	}
+
 	/**
 	 * Wait for the connection to be upgraded
 	 * 
@@ -523,8 +877,10 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 
 		int streamId = currentReceivedFrame.getStreamId();
 		if (streamId != 0) {
-			NettyStream stream = (NettyStream) getStream(streamId);
-			stream.addReceivedFrame(currentReceivedFrame);
+			NettyStream stream = streams.get(streamId);
+			if (stream != null) {
+				stream.addReceivedFrame(currentReceivedFrame);
+			}
 		}
 
 	}
@@ -544,9 +900,15 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 				this.http2InUsePromise.setSuccess();
 				log("================= HTTP/2 protocol is in use now =================");
 			} else {
-				// it should be a normal reply:
-				this.lastResponseSettingsFrame = settingsFrame;
-				this.settingsPromise.setSuccess();
+				// it should be a normal reply, the settings sent are in effect from now on:
+				SettingsFrame acked = unackedSettings.poll();
+				if (acked != null) {
+					applyLocalSettings(acked);
+				}
+				if (acked == null || !internalSettings.remove(acked)) {
+					this.lastResponseSettingsFrame = settingsFrame;
+					this.settingsPromise.setSuccess();
+				}
 			}
 		} else {
 			if (settingsFrame.getPayloadLength() % 6 != 0) {
@@ -559,15 +921,34 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 			// Resize the window size:
 			Integer newWindowSize = settingsFrame.getSettings().get(SettingsRegistry.INITIAL_WINDOW_SIZE);
 			if (newWindowSize != null) {
-				for (NettyStream stream : streams.values()) {
-					if (stream.getState() != State.CLOSED) {
-						stream.getWindow().resize(newWindowSize);
-					}
+				if (!streams.forEach(stream -> stream.getState() == State.CLOSED
+						|| stream.getWindow().resize(newWindowSize))) {
+					throw new ConnectionException(ErrorCodeRegistry.FLOW_CONTROL_ERROR,
+							"The window size exceeds the max value");
 				}
+				writePendingData();
 			}
 
-			// the connection state is changed:
-			generateDecoder();
+			// The peer limits the number of the streams we open:
+			Integer maxConcurrentStreams = settingsFrame.getSettings().get(SettingsRegistry.MAX_CONCURRENT_STREAMS);
+			if (maxConcurrentStreams != null) {
+				admission.setLimit(maxConcurrentStreams);
+			}
+
+			// The peer limits the size of the header table our encoder uses:
+			Integer newHeaderTableSize = settingsFrame.getSettings().get(SettingsRegistry.HEADER_TABLE_SIZE);
+			if (newHeaderTableSize != null) {
+				if (newHeaderTableSize < 0) {
+					// An unsigned value beyond the range of int:
+					newHeaderTableSize = Integer.MAX_VALUE;
+				}
+				synchronized (encoder) {
+					pendingEncoderTableSize = newHeaderTableSize;
+					if (minPendingEncoderTableSize < 0 || newHeaderTableSize < minPendingEncoderTableSize) {
+						minPendingEncoderTableSize = newHeaderTableSize;
+					}
+				}
+			}
 
 			if (config.isSendAcknowledgePrefaceImmediately()) {
 				send(SettingsFrame.REPLY);
@@ -586,6 +967,9 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		validatePayloadLength(PingFrame.PAYLOAD_LENGTH);
 
 		if (pingFrame.isAck()) {
+			if (windowTuner != null && windowTuner.onPingAck(pingFrame)) {
+				return;
+			}
 			// It's a reponse Ping, mark the ping round-trip is done
 			// successfully.
 			this.lastResponsePingFrame = pingFrame;
@@ -599,11 +983,29 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 	}
 
 	/**
-	 * Persist the last received GOAWAY frame for later use
+	 * Persist the last received GOAWAY frame for later use. The streams of ours
+	 * above the last one processed by the peer are refused, so that they can
+	 * be retried on another connection (RFC 7540, Section 6.8), and the
+	 * connection is closed once the others are done.
 	 */
 	private void processGoAwayFrame() {
 		GoAwayFrame goAwayFrame = (GoAwayFrame) currentReceivedFrame;
 		this.lastReceivedGoAwayFrame.set(goAwayFrame);
+		log("GOAWAY received: " + goAwayFrame.getErrorCode() + ", last stream " + goAwayFrame.getLastStreamId());
+
+		admission.failAll(new ConnectionException(ErrorCodeRegistry.REFUSED_STREAM,
+				"The connection is going away: " + goAwayFrame.getDebugData()));
+		List<NettyStream> refused = new ArrayList<>();
+		streams.forEach(stream -> {
+			if (stream.getId() % 2 == 1 && stream.getId() > goAwayFrame.getLastStreamId()) {
+				refused.add(stream);
+			}
+			return true;
+		});
+		for (NettyStream stream : refused) {
+			stream.onRefused();
+		}
+		shutdown();
 	}
 
 	/**
@@ -613,14 +1015,6 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 
 		HeadersFrame headersFrame = (HeadersFrame) currentReceivedFrame;
 
-		// For Upgrade scenario, if the stream id is 1, it's specially handled.
-		if (headersFrame.getStreamId() == 1) {
-			NettyStream stream = (NettyStream) getStream(1);
-			stream.setState(State.HALF_CLOSED_LOCAL);
-			stream.addDefaultDataFrameConsumer();
-			this.streams.putIfAbsent(1, stream);
-		}
-
 		int streamId = headersFrame.getStreamId();
 		NettyStream stream = streams.get(streamId);
 
@@ -628,13 +1022,12 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		validatePadLength(headersFrame);
 
 		if (stream == null) {
-			if (streamId == 1) {
-				stream = newStream();
-				stream.setState(State.HALF_CLOSED_LOCAL);
-				streams.putIfAbsent(streamId, stream);
+			// For Upgrade scenario, if the stream id is 1, it's specially handled.
+			if (streamId == 1 && !closedStreams.contains(1)) {
+				stream = upgradeStream();
 			} else {
-				throw new ConnectionException(ErrorCodeRegistry.UNKNOWN,
-						"A frame on a unknown stream is received: " + headersFrame.getStreamId());
+				processFrameOnClosedStream(headersFrame);
+				return;
 			}
 		}
 
@@ -678,6 +1071,10 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		}
 
 		NettyStream stream = streams.get(continuationFrame.getStreamId());
+		if (stream == null) {
+			processFrameOnClosedStream(continuationFrame);
+			return;
+		}
 		stream.onContinuation(continuationFrame);
 
 	}
@@ -695,7 +1092,15 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		validateStreamId(false);
 		validatePadLength(dataFrame);
 
+		if (windowTuner != null) {
+			windowTuner.onData(dataFrame.getPayloadLength());
+		}
+
 		NettyStream stream = streams.get(dataFrame.getStreamId());
+		if (stream == null) {
+			processFrameOnClosedStream(dataFrame);
+			return;
+		}
 
 		stream.onData(dataFrame);
 
@@ -715,6 +1120,10 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		validatePayloadLength(PriorityFrame.PAYLOAD_LENGTH);
 
 		NettyStream stream = streams.get(priorityFrame.getStreamId());
+		if (stream == null) {
+			// The stream is closed or not used yet, it has no dependents:
+			return;
+		}
 		stream.onPriority(priorityFrame);
 
 	}
@@ -741,17 +1150,26 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 
 		int promisedStreamId = pushPromiseFrame.getPromisedStreamId();
 
+		NettyStream stream = streams.get(pushPromiseFrame.getStreamId());
+		if (stream == null && closedStreams.isReset(pushPromiseFrame.getStreamId())) {
+			// Sent before the peer knew about the reset, refuse the promised stream:
+			decodeHeaderBlockFragment(pushPromiseFrame.getStreamId(), pushPromiseFrame.getHeaderBlockFragmentBuffer(),
+					true, pushPromiseFrame.isEndHeaders());
+			closedStreams.add(promisedStreamId, true);
+			send(new ResetFrame(promisedStreamId, ErrorCodeRegistry.REFUSED_STREAM));
+			return;
+		}
+
 		NettyStream promisedStream = new NettyStream(this, promisedStreamId);
 		promisedStream.addDefaultDataFrameConsumer();
 
-		if (streams.putIfAbsent(promisedStreamId, promisedStream) == null) {
-			promisedStream.setState(State.RESERVED_REMOTE);
+		if (!closedStreams.contains(promisedStreamId) && streams.putIfAbsent(promisedStreamId, promisedStream) == null) {
+			promisedStream.transition(Event.RECEIVE_PUSH_PROMISE);
 		} else {
 			throw new ConnectionException(ErrorCodeRegistry.PROTOCOL_ERROR, "The promised stream ID is not in 'IDLE' state");
 		}
 
-		NettyStream stream = streams.get(pushPromiseFrame.getStreamId());
-		State streamState = stream.getState();
+		State streamState = stream == null ? State.CLOSED : stream.getState();
 		if (streamState != State.OPEN && streamState != State.HALF_CLOSED_LOCAL) {
 			throw new ConnectionException(ErrorCodeRegistry.PROTOCOL_ERROR,
 					"illegal stream state receiving PUSHI_PROMISE frame: " + streamState);
@@ -783,10 +1201,16 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 			}
 			if (!window.increment(windowUpdateFrame.getWindowSizeIncrement())) {
 				goAway(ErrorCodeRegistry.FLOW_CONTROL_ERROR, "The window size exceeds the max value");
+			} else {
+				writePendingData();
 			}
 		} else {
-			// To a specific stream:
+			// To a specific stream, which may have been closed meanwhile:
 			NettyStream stream = streams.get(streamId);
+			if (stream == null) {
+				processFrameOnClosedStream(windowUpdateFrame);
+				return;
+			}
 			stream.onWindowUpdate(windowUpdateFrame);
 		}
 
@@ -804,6 +1228,10 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		validatePayloadLength(ResetFrame.PAYLOAD_LENGTH);
 
 		NettyStream stream = streams.get(resetFrame.getStreamId());
+		if (stream == null) {
+			processFrameOnClosedStream(resetFrame);
+			return;
+		}
 
 		// RST_STREAM frames MUST NOT be sent for a stream in the "idle" state.
 		// If a RST_STREAM frame identifying an idle stream is received, the
@@ -852,40 +1280,229 @@ public class Http2FrameHandler extends ChannelInboundHandlerAdapter implements C
 		}
 	}
 
+	/**
+	 * Write the frame, without flushing it when batching the writes. The write
+	 * and the flush bookkeeping always run on the event loop so that the
+	 * scheduled flush comes after every write that found it already scheduled.
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	private ChannelFuture write(Frame frame) {
+		ChannelPromise promise = ctx.newPromise();
+		Runnable task = config.isWriteBatching() ? () -> writeAndScheduleFlush(frame, promise)
+				: () -> ctx.writeAndFlush(frame, promise);
+		// The frames written by other threads wait in the task queue, a frame
+		// written in the event loop must not overtake them, e.g. a header block
+		// encoded after theirs:
+		if (ctx.executor().inEventLoop() && queuedWrites.get() == 0) {
+			task.run();
+		} else {
+			queuedWrites.incrementAndGet();
+			ctx.executor().execute(() -> {
+				queuedWrites.decrementAndGet();
+				task.run();
+			});
+		}
+		return promise;
+	}
+
+	private void writeAndScheduleFlush(Frame frame, ChannelPromise promise) {
+		ctx.write(frame, promise);
+		pendingFlushBytes += 9 + frame.getPayloadLength();
+		if (pendingFlushBytes >= config.getFlushThreshold()) {
+			// Flush right away if there are enough bytes written:
+			flushNow();
+		} else if (!flushScheduled) {
+			// Otherwise flush once at the end of the current event loop tick:
+			flushScheduled = true;
+			ctx.executor().execute(this::flushNow);
+		}
+	}
+
+	private void flushNow() {
+		flushScheduled = false;
+		pendingFlushBytes = 0;
+		ctx.flush();
+	}
+
 	private void disconnect() {
+		// The event loop is shared by the connections of the factory:
 		this.ctx.channel().close();
-		this.eventLoopGroup.shutdownGracefully();
 	}
 
-	private void generateEncoder() {
-		encoder = new Encoder(settingsRequiredByLocal.getHeaderTableSize());
+	/**
+	 * Apply the acknowledged settings sent by us. The decoder is resized rather
+	 * than recreated, so that its dynamic table stays in sync with the peer's
+	 * encoder.
+	 * 
+	 * @param settingsFrame
+	 */
+	private void applyLocalSettings(SettingsFrame settingsFrame) {
+		settingsRequiredByLocal.setFrom(settingsFrame);
+		Integer newHeaderTableSize = settingsFrame.getSettings().get(SettingsRegistry.HEADER_TABLE_SIZE);
+		if (newHeaderTableSize != null) {
+			decoder.setMaxHeaderTableSize(newHeaderTableSize);
+		}
+		Integer newMaxHeaderListSize = settingsFrame.getSettings().get(SettingsRegistry.MAX_HEADER_LIST_SIZE);
+		if (newMaxHeaderListSize != null) {
+			maxHeaderListSize = newMaxHeaderListSize & 0xFFFFFFFFL;
+		}
+		Integer newWindowSize = settingsFrame.getSettings().get(SettingsRegistry.INITIAL_WINDOW_SIZE);
+		if (newWindowSize != null) {
+			streams.forEach(stream -> {
+				stream.getReceiveWindow().resize(newWindowSize);
+				return true;
+			});
+		}
+	}
+
+	/**
+	 * Get the initial size of the receive window of a new stream
+	 * 
+	 * @return
+	 */
+	int localInitialWindowSize() {
+		return settingsRequiredByLocal.getInitialWindowSize();
+	}
+
+	/**
+	 * Grow the receive window of the connection with a WINDOW_UPDATE and the
+	 * ones of the streams with SETTINGS_INITIAL_WINDOW_SIZE, the latter are
+	 * resized once the settings are acknowledged
+	 * 
+	 * @param newWindowSize
+	 * @throws ConnectionException
+	 */
+	void growReceiveWindows(int newWindowSize) throws ConnectionException {
+		int increment = newWindowSize - receiveWindow.getSize();
+		if (increment > 0) {
+			receiveWindow.resize(newWindowSize);
+			windowUpdate(increment);
+		}
+		SortedMap<SettingsRegistry, Integer> settings = new TreeMap<>();
+		settings.put(SettingsRegistry.INITIAL_WINDOW_SIZE, newWindowSize);
+		sendInternal(new SettingsFrame(settings));
 	}
 
-	private void generateDecoder() {
-		decoder = new Decoder(settingsRequiredByRemote.getMaxHeaderListSize(),
-				settingsRequiredByRemote.getHeaderTableSize());
+	/**
+	 * Give the bytes of a consumed DATA frame back to the peer, a WINDOW_UPDATE
+	 * is only sent once enough of the connection window has been consumed by
+	 * all the streams
+	 * 
+	 * @param length
+	 * @throws ConnectionException
+	 */
+	void dataConsumed(int length) throws ConnectionException {
+		int increment = receiveWindow.consume(length);
+		if (increment > 0) {
+			windowUpdate(increment);
+		}
 	}
 
 	FlowControlWindow getWindow() {
 		return window;
 	}
 
-	ConcurrentHashMap<Integer, NettyStream> streams() {
+	/**
+	 * Let the scheduler write the pending DATA of the streams, it's called in
+	 * the event loop whenever DATA is queued or a window grows
+	 */
+	void writePendingData() {
+		dataScheduler.schedule();
+	}
+
+	/**
+	 * The allocator of the channel, which pools the buffers
+	 * 
+	 * @return
+	 */
+	ByteBufAllocator alloc() {
+		return ctx.alloc();
+	}
+
+	Http2StreamRegistry streams() {
 		return streams;
 	}
 
+	/**
+	 * Remove the closed stream from the connection, only its identifier is
+	 * remembered to recognize the frames received late for it. It's called in
+	 * the event loop.
+	 * 
+	 * @param stream
+	 */
+	void reclaim(NettyStream stream) {
+		int streamId = stream.getId();
+		boolean reset = stream.getState() == State.RESET_LOCAL || stream.getState() == State.RESET_REMOTE;
+		if (streams.remove(streamId, stream)) {
+			closedStreams.add(streamId, reset);
+			stream.onReclaimed();
+			if (streamId % 2 == 1) {
+				// One of ours, let a waiting request have its place:
+				admission.closed();
+			}
+			closeIfDrained();
+		} else if (reset && closedStreams.contains(streamId)) {
+			// A stream looked up after its removal has been reset:
+			closedStreams.add(streamId, true);
+		}
+	}
+
+	/**
+	 * Process a frame received on a stream which is not in the connection
+	 * (RFC 7540, Section 5.1). The header blocks are still decoded to keep the
+	 * HPACK context in sync and the DATA still counts against the connection
+	 * window. The frames on a reset stream may have been sent before the peer
+	 * knew about it, so they are ignored. Otherwise, DATA and HEADERS on a
+	 * closed stream are a stream error of type STREAM_CLOSED.
+	 * 
+	 * @param frame
+	 * @throws ConnectionException
+	 */
+	private void processFrameOnClosedStream(Frame frame) throws ConnectionException {
+
+		int streamId = frame.getStreamId();
+		if (!closedStreams.contains(streamId)) {
+			throw new ConnectionException(ErrorCodeRegistry.PROTOCOL_ERROR,
+					"A frame on a unknown stream is received: " + streamId);
+		}
+
+		switch (frame.getType()) {
+		case DATA:
+			dataConsumed(frame.getPayloadLength());
+			break;
+		case HEADERS:
+			HeadersFrame headersFrame = (HeadersFrame) frame;
+			decodeHeaderBlockFragment(streamId, headersFrame.getHeaderBlockFragmentBuffer(), true,
+					headersFrame.isEndHeaders());
+			break;
+		case CONTINUATION:
+			ContinuationFrame continuationFrame = (ContinuationFrame) frame;
+			decodeHeaderBlockFragment(streamId, continuationFrame.getHeaderBlockFragmentBuffer(), false,
+					continuationFrame.isEndHeaders());
+			return;
+		default:
+			// WINDOW_UPDATE, PRIORITY and RST_STREAM may be received on a closed stream
+			return;
+		}
+
+		if (!closedStreams.isReset(streamId)) {
+			throw new StreamException(streamId, ErrorCodeRegistry.STREAM_CLOSED,
+					"A " + frame.getType() + " frame on a closed stream is received");
+		}
+
+	}
+
 	/**
 	 * Close all streams in the "idle" state that might have been initiated by
-	 * that peer with a lower-valued stream identifier.
+	 * that peer with a lower-valued stream identifier. They are not looked for,
+	 * their state is reported as closed from now on.
 	 * 
 	 * @param streamId
 	 */
 	void closeUnusedIdleStreams(int streamId) {
-		for (NettyStream stream : this.streams.values()) {
-			if (stream.getId() < streamId && stream.getState() == State.IDLE) {
-				stream.setState(State.CLOSED);
-			}
-		}
+		streams.opened(streamId);
 	}
 
 	ConnectionConfig config() {
@@ -2,6 +2,7 @@ package com.yulong.http2.client.netty;
 
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import com.yulong.http2.client.ConnectionConfig;
 
 /**
@@ -18,6 +19,9 @@ public abstract class Http2Initializer extends ChannelInitializer<SocketChannel>
 
 	@Override
 	protected void initChannel(SocketChannel ch) throws Exception {
+		if (config.getFlushConsolidation() > 0) {
+			ch.pipeline().addLast(new FlushConsolidationHandler(config.getFlushConsolidation(), true));
+		}
 		configure(ch);
 		configureEndOfPipeline(ch);
 	}
@@ -37,7 +41,8 @@ public abstract class Http2Initializer extends ChannelInitializer<SocketChannel>
 	 * @param ch
 	 */
 	private void configureEndOfPipeline(SocketChannel ch) {
-		ch.pipeline().addLast(new Http2FrameDecoder());
+		ch.pipeline().addLast(new Http2FrameEncoder());
+		ch.pipeline().addLast(new Http2FrameDecoder(config.isZeroCopyDecoding()));
 		ch.pipeline().addLast(frameHandler);
 	}
 
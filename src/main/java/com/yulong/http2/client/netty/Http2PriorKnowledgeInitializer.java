@@ -1,7 +1,6 @@
 package com.yulong.http2.client.netty;
 
 import io.netty.channel.ChannelPromise;
-import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import com.yulong.http2.client.ConnectionConfig;
 import com.yulong.http2.client.Http2StartingException;
@@ -13,14 +12,12 @@ public class Http2PriorKnowledgeInitializer extends Http2Initializer {
 
 	private final String host;
 	private final int port;
-	private final EventLoopGroup eventLoopGroup;
 
-	public Http2PriorKnowledgeInitializer(String host, int port, final ConnectionConfig config,
-			EventLoopGroup eventLoopGroup) throws Http2StartingException {
+	public Http2PriorKnowledgeInitializer(String host, int port, final ConnectionConfig config)
+			throws Http2StartingException {
 		super(config);
 		this.host = host;
 		this.port = port;
-		this.eventLoopGroup = eventLoopGroup;
 	}
 
 	/**
@@ -31,7 +28,7 @@ public class Http2PriorKnowledgeInitializer extends Http2Initializer {
 	@Override
 	protected void configure(SocketChannel ch) {
 		ChannelPromise http2InUsePromise = ch.newPromise();
-		this.frameHandler = new Http2FrameHandler(http2InUsePromise, host, port, "http", config, eventLoopGroup);
+		this.frameHandler = new Http2FrameHandler(http2InUsePromise, host, port, "http", config);
 	}
 
 }
@@ -0,0 +1,160 @@
+package com.yulong.http2.client.netty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import io.netty.util.collection.IntObjectHashMap;
+
+/**
+ * The active streams of a connection by their identifiers, in primitive
+ * open-addressing maps so that looking up the stream of a received frame does
+ * not box its identifier.
+ * <p>
+ * It also keeps the highest identifier of the streams we have opened: the
+ * streams in the "idle" state below it are implicitly closed (RFC 7540,
+ * Section 5.1.1), so they don't need to be looked for.
+ * <p>
+ * It's mostly accessed in the event loop, but the streams are created by any
+ * thread. The streams are split into stripes by their identifiers, each with
+ * its own lock: looking up a stream only contends with the threads adding or
+ * removing a stream of the same stripe at the same time.
+ */
+public class Http2StreamRegistry {
+
+	// The number of the stripes, a power of 2:
+	private static final int STRIPES = 16;
+
+	private final IntObjectHashMap<NettyStream>[] stripes;
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger highestOpenedStreamId = new AtomicInteger();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Http2StreamRegistry() {
+		stripes = new IntObjectHashMap[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new IntObjectHashMap<>();
+		}
+	}
+
+	/**
+	 * Get the stripe of a stream, the identifiers of the streams opened by the
+	 * same endpoint differ by 2
+	 * 
+	 * @param streamId
+	 * @return
+	 */
+	private IntObjectHashMap<NettyStream> stripe(int streamId) {
+		return stripes[(streamId >>> 1) & (STRIPES - 1)];
+	}
+
+	NettyStream get(int streamId) {
+		IntObjectHashMap<NettyStream> stripe = stripe(streamId);
+		synchronized (stripe) {
+			return stripe.get(streamId);
+		}
+	}
+
+	/**
+	 * Add the stream if there is none with the same identifier
+	 * 
+	 * @param streamId
+	 * @param stream
+	 * @return the stream already there, or null if the given one is added
+	 */
+	NettyStream putIfAbsent(int streamId, NettyStream stream) {
+		IntObjectHashMap<NettyStream> stripe = stripe(streamId);
+		synchronized (stripe) {
+			NettyStream existing = stripe.get(streamId);
+			if (existing == null) {
+				stripe.put(streamId, stream);
+				size.incrementAndGet();
+			}
+			return existing;
+		}
+	}
+
+	/**
+	 * Remove the stream if it's still the one registered with its identifier
+	 * 
+	 * @param streamId
+	 * @param stream
+	 * @return true if it's removed
+	 */
+	boolean remove(int streamId, NettyStream stream) {
+		IntObjectHashMap<NettyStream> stripe = stripe(streamId);
+		synchronized (stripe) {
+			if (stripe.get(streamId) != stream) {
+				return false;
+			}
+			stripe.remove(streamId);
+			size.decrementAndGet();
+			return true;
+		}
+	}
+
+	boolean contains(int streamId) {
+		IntObjectHashMap<NettyStream> stripe = stripe(streamId);
+		synchronized (stripe) {
+			return stripe.containsKey(streamId);
+		}
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Apply an action to the streams, one stripe at a time with its lock held,
+	 * until it returns false. The action must not add or remove streams.
+	 * 
+	 * @param action
+	 * @return false if the action has returned false
+	 */
+	boolean forEach(Predicate<NettyStream> action) {
+		for (IntObjectHashMap<NettyStream> stripe : stripes) {
+			synchronized (stripe) {
+				for (NettyStream stream : stripe.values()) {
+					if (!action.test(stream)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get a snapshot of the streams, which can be iterated while streams are
+	 * added or removed
+	 * 
+	 * @return
+	 */
+	List<NettyStream> values() {
+		List<NettyStream> values = new ArrayList<>(size.get());
+		forEach(values::add);
+		return values;
+	}
+
+	/**
+	 * Record that we have opened the given stream, which implicitly closes our
+	 * idle streams with a lower identifier
+	 * 
+	 * @param streamId
+	 */
+	void opened(int streamId) {
+		highestOpenedStreamId.accumulateAndGet(streamId, Math::max);
+	}
+
+	/**
+	 * If a stream of ours still in the "idle" state is implicitly closed
+	 * 
+	 * @param streamId
+	 * @return
+	 */
+	boolean isIdleClosed(int streamId) {
+		return streamId < highestOpenedStreamId.get();
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.yulong.http2.client.netty;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.yulong.http2.client.Stream.State;
+
+/**
+ * The transitions of the stream states on the client side (RFC 7540, Section
+ * 5.1), by the event causing them. An event which doesn't apply to the
+ * current state leaves it unchanged, e.g. a HEADERS frame of trailers.
+ * <p>
+ * The "idle" streams implicitly closed by a stream opened with a higher
+ * identifier are not transitioned, they are reported as "closed" when asked.
+ */
+public class Http2StreamTransitions {
+
+	/**
+	 * What changes the state of a stream
+	 */
+	enum Event {
+		SEND_HEADERS, SEND_END_STREAM, RECEIVE_HEADERS, RECEIVE_END_STREAM, SEND_RST_STREAM, RECEIVE_RST_STREAM,
+		RECEIVE_PUSH_PROMISE, SEND_UPGRADE_REQUEST, RECEIVE_GOAWAY;
+	}
+
+	private static final Map<State, Map<Event, State>> TRANSITIONS = new EnumMap<>(State.class);
+
+	static {
+		for (State state : State.values()) {
+			TRANSITIONS.put(state, new EnumMap<>(Event.class));
+		}
+
+		add(State.IDLE, Event.SEND_HEADERS, State.OPEN);
+		add(State.IDLE, Event.RECEIVE_PUSH_PROMISE, State.RESERVED_REMOTE);
+		// The request of an HTTP/1.1 Upgrade is sent on the stream 1:
+		add(State.IDLE, Event.SEND_UPGRADE_REQUEST, State.HALF_CLOSED_LOCAL);
+
+		add(State.RESERVED_REMOTE, Event.RECEIVE_HEADERS, State.HALF_CLOSED_LOCAL);
+
+		add(State.OPEN, Event.SEND_END_STREAM, State.HALF_CLOSED_LOCAL);
+		add(State.OPEN, Event.RECEIVE_END_STREAM, State.HALF_CLOSED_REMOTE);
+
+		add(State.HALF_CLOSED_LOCAL, Event.RECEIVE_END_STREAM, State.CLOSED);
+		add(State.HALF_CLOSED_REMOTE, Event.SEND_END_STREAM, State.CLOSED);
+
+		for (State state : State.values()) {
+			if (state == State.RESET_LOCAL || state == State.RESET_REMOTE) {
+				continue;
+			}
+			// A closed stream is still reset when a frame received on it is
+			// in error:
+			add(state, Event.SEND_RST_STREAM, State.RESET_LOCAL);
+			if (state != State.IDLE && state != State.CLOSED) {
+				add(state, Event.RECEIVE_RST_STREAM, State.RESET_REMOTE);
+				// Not processed by the peer, as if reset with REFUSED_STREAM:
+				add(state, Event.RECEIVE_GOAWAY, State.RESET_REMOTE);
+			}
+		}
+	}
+
+	private Http2StreamTransitions() {
+	}
+
+	private static void add(State from, Event event, State to) {
+		TRANSITIONS.get(from).put(event, to);
+	}
+
+	/**
+	 * Get the state a stream moves to on the given event
+	 * 
+	 * @param from
+	 * @param event
+	 * @return the new state, or null if the event doesn't change the state
+	 */
+	static State next(State from, Event event) {
+		return TRANSITIONS.get(from).get(event);
+	}
+
+	/**
+	 * If a stream in the given state is no longer used
+	 * 
+	 * @param state
+	 * @return
+	 */
+	static boolean isTerminal(State state) {
+		return state == State.CLOSED || state == State.RESET_LOCAL || state == State.RESET_REMOTE;
+	}
+
+}
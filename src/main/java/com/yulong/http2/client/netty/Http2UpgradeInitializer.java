@@ -1,7 +1,6 @@
 package com.yulong.http2.client.netty;
 
 import io.netty.channel.ChannelPromise;
-import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 
 import java.util.List;
@@ -20,10 +19,9 @@ public class Http2UpgradeInitializer extends Http2Initializer {
 	private final String path;
 	private final List<Header> headers;
 	private final String requestBody;
-	private final EventLoopGroup eventLoopGroup;
 
 	public Http2UpgradeInitializer(String host, int port, String method, String path, List<Header> headers,
-			String requestBody, ConnectionConfig config, EventLoopGroup eventLoopGroup) {
+			String requestBody, ConnectionConfig config) {
 		super(config);
 		this.host = host;
 		this.port = port;
@@ -31,7 +29,6 @@ public class Http2UpgradeInitializer extends Http2Initializer {
 		this.path = path;
 		this.headers = headers;
 		this.requestBody = requestBody;
-		this.eventLoopGroup = eventLoopGroup;
 	}
 
 	/**
@@ -45,7 +42,7 @@ public class Http2UpgradeInitializer extends Http2Initializer {
 		Http2UpgradeHandler upgradeHandler = new Http2UpgradeHandler(http2InUsePromise, host, port, method, path, headers,
 				requestBody, config.getConnectionPreface());
 		config.setConnectionPreface(null);
-		this.frameHandler = new Http2FrameHandler(http2InUsePromise, host, port, "http", config, eventLoopGroup);
+		this.frameHandler = new Http2FrameHandler(http2InUsePromise, host, port, "http", config);
 		ch.pipeline().addLast(upgradeHandler);
 	}
 
@@ -0,0 +1,101 @@
+package com.yulong.http2.client.netty;
+
+import static com.yulong.http2.client.utils.LogUtil.log;
+
+import java.util.Arrays;
+
+import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.frame.PingFrame;
+
+/**
+ * Grow the receive windows to the bandwidth-delay product of the connection,
+ * so that a download is not limited to one window per round trip.
+ * <p>
+ * A PING is sent along with the first DATA frame received after the previous
+ * PING was acknowledged, and the bytes received until its acknowledgement are
+ * the sample of one round trip. When a sample nearly fills the current window
+ * and shows a higher bandwidth than seen so far, the window is the bottleneck:
+ * it's doubled to twice the sample, up to the configured maximum, for the
+ * connection with a WINDOW_UPDATE and for the streams with
+ * SETTINGS_INITIAL_WINDOW_SIZE.
+ * <p>
+ * It's only accessed in the event loop of the connection.
+ */
+public class Http2WindowTuner {
+
+	// The opaque data telling our PINGs from the ones sent by the user:
+	private static final byte[] PING_DATA = { 'w', 'i', 'n', 'd', 't', 'u', 'n', 'e' };
+
+	// The ratio of the window a sample must reach to be taken into account:
+	private static final double GROW_THRESHOLD = 2.0 / 3;
+
+	private final Http2FrameHandler connection;
+	private final int maxWindowSize;
+
+	private int windowSize;
+	private boolean pinging;
+	private long pingSentNanos;
+	private int sample;
+	private double maxBandwidth;
+
+	Http2WindowTuner(Http2FrameHandler connection, int initialWindowSize, int maxWindowSize) {
+		this.connection = connection;
+		this.windowSize = initialWindowSize;
+		this.maxWindowSize = maxWindowSize;
+	}
+
+	/**
+	 * Account for a received DATA frame
+	 * 
+	 * @param length
+	 *            the payload length, padding included
+	 */
+	void onData(int length) {
+		if (windowSize >= maxWindowSize) {
+			return;
+		}
+		if (!pinging) {
+			pinging = true;
+			sample = 0;
+			pingSentNanos = System.nanoTime();
+			connection.sendInternal(new PingFrame(false, PING_DATA));
+		}
+		sample += length;
+	}
+
+	/**
+	 * Process a PING acknowledgement
+	 * 
+	 * @param pingFrame
+	 * @return true if it acknowledges a PING sent by the tuner, false if it
+	 *         belongs to the user
+	 * @throws ConnectionException
+	 */
+	boolean onPingAck(PingFrame pingFrame) throws ConnectionException {
+
+		if (!pinging || !Arrays.equals(PING_DATA, pingFrame.getOpaqueData())) {
+			return false;
+		}
+		pinging = false;
+
+		long rtt = Math.max(1, System.nanoTime() - pingSentNanos);
+		if (sample < windowSize * GROW_THRESHOLD) {
+			return true;
+		}
+		double bandwidth = (double) sample / rtt;
+		if (bandwidth < maxBandwidth) {
+			return true;
+		}
+		maxBandwidth = bandwidth;
+
+		int newWindowSize = (int) Math.min(2L * sample, maxWindowSize);
+		if (newWindowSize > windowSize) {
+			log("Growing the receive windows from " + windowSize + " to " + newWindowSize + " (rtt=" + rtt / 1000
+					+ "us)");
+			windowSize = newWindowSize;
+			connection.growReceiveWindows(newWindowSize);
+		}
+		return true;
+	}
+
+}
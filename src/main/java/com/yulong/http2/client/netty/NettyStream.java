@@ -1,38 +1,41 @@
 package com.yulong.http2.client.netty;
 
-import static io.netty.buffer.Unpooled.buffer;
 import static com.yulong.http2.client.common.Constants.CONNECTION_STREAM_ID;
 import static com.yulong.http2.client.utils.Debug.debugPushRequest;
 import static com.yulong.http2.client.utils.Debug.debugResponseCache;
 import static com.yulong.http2.client.utils.Debug.debugResponseHeader;
 import static com.yulong.http2.client.utils.LogUtil.log;
-import static com.yulong.http2.client.utils.Utils.combine;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
 import com.yulong.http2.client.Connection;
 import com.yulong.http2.client.ConnectionException;
 import com.yulong.http2.client.Stream;
 import com.yulong.http2.client.StreamException;
 import com.yulong.http2.client.common.ErrorCodeRegistry;
 import com.yulong.http2.client.common.FlowControlWindow;
+import com.yulong.http2.client.common.ReceiveWindow;
 import com.yulong.http2.client.frame.ContinuationFrame;
 import com.yulong.http2.client.frame.DataFrame;
 import com.yulong.http2.client.frame.Frame;
@@ -42,33 +45,48 @@ import com.yulong.http2.client.frame.PriorityFrame;
 import com.yulong.http2.client.frame.PushPromiseFrame;
 import com.yulong.http2.client.frame.ResetFrame;
 import com.yulong.http2.client.frame.WindowUpdateFrame;
+import com.yulong.http2.client.message.Header;
 import com.yulong.http2.client.message.Http2Headers;
 import com.yulong.http2.client.message.Http2Response;
 import com.yulong.http2.client.message.PushRequest;
+import com.yulong.http2.client.netty.Http2StreamTransitions.Event;
 
 /**
  * An HTTP/2 Stream representation
  */
 public class NettyStream implements Stream {
 
+	private static final AtomicReferenceFieldUpdater<NettyStream, State> STATE_UPDATER = AtomicReferenceFieldUpdater
+			.newUpdater(NettyStream.class, State.class, "state");
+
 	private final Http2FrameHandler connection;
 	private final int id;
-	private final StateWrapper state;
+	// Changed by the event loop and the callers, see transition():
+	private volatile State state;
+	private final List<StateListener> stateListeners = new CopyOnWriteArrayList<>();
+	private volatile ErrorCodeRegistry sentResetError;
 
 	private NettyStream parentStream;
 	private final List<NettyStream> dependentStreams;
 	private int weight;
 
-	private byte[] receivedHeaderBlock;
 
-	private ByteBuf dataBuffer = buffer(13684);
+	// Allocated on the first DATA frame, only accessed in the event loop:
+	private ByteBuf dataBuffer;
+	// The content-length of the response, or -1 if unknown:
+	private long expectedContentLength = -1;
 
 	private Http2ResponseImpl response;
 
-	private FrameHistory lastReceivedNonControlFrame;
+	private volatile FrameHistory lastReceivedNonControlFrame;
+	// If the header block being received carries END_STREAM, only accessed in the event loop:
+	private boolean endStreamReceived;
 	private ResetFrame receivedResetFrame;
-
-	private final ExecutorService executorService;
+	// Completed in the event loop at the end of the response or on reset:
+	private final CompletableFuture<Http2Response> responseFuture = new CompletableFuture<>();
+	// Set once the response is complete or failed, the stream can then be
+	// removed from the connection when it's closed:
+	private volatile boolean responseDone;
 
 	private Stream currentPromisedStream;
 	private PushPromiseFrame currentPushPromiseFrame;
@@ -76,6 +94,15 @@ public class NettyStream implements Stream {
 	private final List<Consumer<PushRequest>> pushRequestConsumers;
 	private final List<Consumer<DataFrame>> dataFrameConsumers;
 	private final FlowControlWindow window;
+	private final ReceiveWindow receiveWindow;
+	// The DATA waiting for the flow-control windows, only accessed in the event loop:
+	private final Queue<PendingData> pendingData;
+
+	// The state of the DATA scheduler, only accessed in the event loop:
+	long virtualTime;
+	long childrenVirtualTime;
+	boolean active;
+	int stalledRound;
 
 	private Path cacheFile;
 	private OutputStream cacheOutputStream;
@@ -90,34 +117,39 @@ public class NettyStream implements Stream {
 		// Coalition:
 		this.connection = connection;
 		this.id = id;
-		this.state = new StateWrapper(state);
+		this.state = state;
 
 		// Dependencies and priority:
 		if (id == CONNECTION_STREAM_ID) {
 			this.parentStream = null;
 		} else {
 			this.parentStream = connection.getConnectionStream();
-			//this.parentStream.dependentStreams.add(this);
 		}
-		this.dependentStreams = new ArrayList<NettyStream>();
+		// Read by any thread but only changed in the event loop:
+		this.dependentStreams = new CopyOnWriteArrayList<NettyStream>();
 		this.weight = 16;
 
 		// Responses:
-		this.receivedHeaderBlock = new byte[0];
-
-		executorService = Executors.newCachedThreadPool(new ThreadFactory() {
-			@Override
-			public Thread newThread(Runnable r) {
-				Thread t = new Thread(r);
-				t.setDaemon(true);
-				return t;
-			}
-		});
 
 		promisedStreams = new HashMap<>();
 		pushRequestConsumers = new ArrayList<>();
 		dataFrameConsumers = new ArrayList<>();
 		window = new FlowControlWindow(id, this.connection.currentSettings().getInitialWindowSize());
+		receiveWindow = new ReceiveWindow(id, this.connection.localInitialWindowSize(),
+				this.connection.config().getWindowUpdateRatio());
+		pendingData = new ArrayDeque<>();
+
+		if (parentStream != null && state != State.CLOSED) {
+			// A new stream depends on the root with the default weight:
+			this.connection.runInEventLoop(() -> parentStream.dependentStreams.add(this));
+		}
+
+		// The response is given up by cancelling its future:
+		responseFuture.whenComplete((completed, cause) -> {
+			if (cause instanceof CancellationException) {
+				cancel();
+			}
+		});
 
 	}
 
@@ -152,7 +184,12 @@ public class NettyStream implements Stream {
 	 */
 	@Override
 	public State getState() {
-		return this.state.get();
+		State current = this.state;
+		if (current == State.IDLE && connection.streams().isIdleClosed(id)) {
+			// Implicitly closed by a stream opened with a higher identifier:
+			return State.CLOSED;
+		}
+		return current;
 	}
 
 	/**
@@ -164,11 +201,21 @@ public class NettyStream implements Stream {
 	@Override
 	public void headers(HeadersFrame headersFrame) throws ConnectionException {
 
+		if (state == State.IDLE && !connection.canOpen(id)) {
+			// Never processed by the peer, so it can be retried elsewhere:
+			throw new StreamException(id, ErrorCodeRegistry.REFUSED_STREAM,
+					"The connection no longer accepts new streams");
+		}
+
 		connection.closeUnusedIdleStreams(id);
 
-		if (state.compareAndSet(State.IDLE, State.OPEN)) {
+		if (transition(Event.SEND_HEADERS)) {
 			// a new request begins
 		}
+		// Before sending, as the response may be received before send returns:
+		if (headersFrame.isEndStream()) {
+			endStreamLocally();
+		}
 		connection.send(headersFrame);
 
 		if (headersFrame.isEndHeaders()) {
@@ -176,11 +223,7 @@ public class NettyStream implements Stream {
 		}
 
 		if (headersFrame.isPriority()) {
-			prioritize(headersFrame.getPriorityFrame());
-		}
-
-		if (headersFrame.isEndStream()) {
-			endStreamLocally();
+			connection.runInEventLoop(() -> prioritize(headersFrame.getPriorityFrame()));
 		}
 
 	}
@@ -192,7 +235,7 @@ public class NettyStream implements Stream {
 	 * @throws ConnectionException
 	 */
 	public void priority(PriorityFrame priorityFrame) throws ConnectionException {
-		prioritize(priorityFrame);
+		connection.runInEventLoop(() -> prioritize(priorityFrame));
 		connection.send(priorityFrame);
 	}
 
@@ -211,54 +254,123 @@ public class NettyStream implements Stream {
 	}
 
 	/**
-	 * Send a DATA frame on the stream
+	 * Send a DATA frame on the stream. The frame is queued and sent by the
+	 * event loop as soon as both the stream and the connection windows allow,
+	 * the caller is never blocked. The stream is half-closed once a frame with
+	 * END_STREAM is actually written, not when it's queued.
 	 * 
 	 * @param dataFrame
+	 * @return a future completed once the whole frame is written
 	 * @throws ConnectionException
 	 */
 	@Override
-	public void data(DataFrame dataFrame) throws ConnectionException {
+	public CompletableFuture<Void> data(DataFrame dataFrame) throws ConnectionException {
 
-		int length = dataFrame.getPayloadLength();
+		CompletableFuture<Void> promise = new CompletableFuture<>();
 
-		if (dataFrame.isPadded()) {
+		connection.runInEventLoop(() -> {
+			if (connection.streams().get(id) != this) {
+				// The stream is closed and removed from the connection:
+				fail(promise, new StreamException(id, ErrorCodeRegistry.STREAM_CLOSED, "The stream is closed"));
+				return;
+			}
+			pendingData.add(new PendingData(dataFrame, promise));
+			connection.writePendingData();
+		});
 
-			Math.min(window.availableSize(length), connection.getWindow().availableSize(length));
-			window.consume(length);
-			connection.getWindow().consume(length);
-			connection.send(dataFrame);
+		return promise;
 
-		} else {
+	}
 
-			byte[] data = dataFrame.getData();
-			boolean endStreamFlag = dataFrame.isEndStream();
+	/**
+	 * Send as much of the queued DATA as the flow-control windows and the
+	 * given limit allow. It's called by the scheduler in the event loop.
+	 * 
+	 * @param limit the number of bytes the scheduler grants, a padded frame
+	 *          which is never split may go beyond it
+	 * @return the number of bytes sent
+	 */
+	int writePendingData(int limit) {
 
-			int sizeAvailable = Math.min(window.availableSize(1), connection.getWindow().availableSize(1));
+		int written = 0;
 
-			if (sizeAvailable >= length) {
+		PendingData pending;
+		while ((pending = pendingData.peek()) != null) {
 
-				window.consume(length);
-				connection.getWindow().consume(length);
-				connection.send(dataFrame);
+			int length = pending.remaining();
+			int windowAvailable = Math.min(window.availableSize(), connection.getWindow().availableSize());
+			int sizeAvailable = Math.min(windowAvailable, limit - written);
 
-			} else {
+			int needed = pending.frame.isPadded() ? length : Math.min(length, 1);
+			if (sizeAvailable < needed) {
+				if (pending.frame.isPadded() && written == 0 && windowAvailable >= length) {
+					sizeAvailable = length;
+				} else {
+					break;
+				}
+			}
 
-				window.consume(sizeAvailable);
-				connection.getWindow().consume(sizeAvailable);
+			try {
+				if (length == 0 || sizeAvailable >= length) {
+					pendingData.poll();
+					window.consume(length);
+					connection.getWindow().consume(length);
+					completeOnWrite(pending.promise, connection.sendFrame(pending.remainingFrame()));
+					written += length;
+					if (pending.frame.isEndStream()) {
+						// The request ends, closing the stream if the response
+						// has ended first:
+						endStreamLocally();
+					}
+				} else {
+					// fragment the data frame:
+					window.consume(sizeAvailable);
+					connection.getWindow().consume(sizeAvailable);
+					connection.sendFrame(pending.nextFragment(sizeAvailable));
+					written += sizeAvailable;
+				}
+			} catch (ConnectionException e) {
+				pendingData.poll();
+				fail(pending.promise, e);
+			}
 
-				// fragment the data frame:
-				connection.send(new DataFrame(getId(), false, Arrays.copyOfRange(data, 0, sizeAvailable)));
+		}
 
-				data(new DataFrame(getId(), endStreamFlag, Arrays.copyOfRange(data, sizeAvailable, length)));
+		if (pendingData.isEmpty()) {
+			// The stream may have been kept for its DATA:
+			reclaimIfDone();
+		}
 
-			}
+		return written;
 
-		}
+	}
 
-		if (dataFrame.isEndStream()) {
-			endStreamLocally();
+	/**
+	 * Get the window size the first pending DATA needs to be sent
+	 * 
+	 * @return -1 if there is no pending DATA
+	 */
+	int pendingDataNeeded() {
+		PendingData pending = pendingData.peek();
+		if (pending == null) {
+			return -1;
 		}
+		int length = pending.remaining();
+		return pending.frame.isPadded() ? length : Math.min(length, 1);
+	}
 
+	/**
+	 * Fail the DATA that has not been sent yet
+	 * 
+	 * @param cause
+	 */
+	private void failPendingData(Throwable cause) {
+		connection.runInEventLoop(() -> {
+			PendingData pending;
+			while ((pending = pendingData.poll()) != null) {
+				fail(pending.promise, cause);
+			}
+		});
 	}
 
 	/**
@@ -273,7 +385,22 @@ public class NettyStream implements Stream {
 		} catch (ConnectionException e) {
 			log("Failed to send RST_STREAM due to " + e);
 		}
-		state.set(State.RESET_LOCAL);
+		this.sentResetError = errorCode;
+		transition(Event.SEND_RST_STREAM);
+	}
+
+	/**
+	 * Give up the stream: it's reset with CANCEL if the peer knows of it, so
+	 * that it stops sending on it and the buffered response is released
+	 */
+	private void cancel() {
+		State current = state;
+		if (current == State.IDLE) {
+			// Never opened, nothing to tell the peer:
+			close();
+		} else if (!Http2StreamTransitions.isTerminal(current)) {
+			reset(ErrorCodeRegistry.CANCEL);
+		}
 	}
 
 	/**
@@ -322,7 +449,20 @@ public class NettyStream implements Stream {
 	@Override
 	public void close() {
 		// log("---------- releasing resources occupied by the current stream: " + id + " ----------");
-		executorService.shutdown();
+		connection.runInEventLoop(() -> {
+			State current = state;
+			if (!pendingData.isEmpty() || current == State.OPEN || current == State.HALF_CLOSED_REMOTE) {
+				// The peer would wait for the rest of the request, which
+				// fails the DATA not sent yet:
+				reset(ErrorCodeRegistry.CANCEL);
+			}
+		});
+		failPendingData(new StreamException(id, ErrorCodeRegistry.CANCEL, "The stream is closed"));
+		connection.runInEventLoop(this::removeFromPriorityTree);
+		if (state == State.IDLE) {
+			// Never used, give its place back:
+			connection.runInEventLoop(() -> connection.reclaim(this));
+		}
 		drain();
 	}
 
@@ -330,80 +470,91 @@ public class NettyStream implements Stream {
 	// Request/Response related methods
 	// ///////////////////////////////////////////////////////////////////////////
 	/**
-	 * Get a future instance of Http2Response of the stream. It's useful when
-	 * you'd like to get the response of the stream
+	 * Get a future instance of Http2Response of the stream. It's completed when
+	 * the response ends with END_STREAM, or completed exceptionally when the
+	 * stream is reset
 	 * 
 	 * @return
 	 */
 	@Override
-	public Future<Http2Response> getResponseFuture() {
-		return executorService.submit(() -> {
-			while (response == null || !response.isComplete()) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-				}
-			}
-			return response;
-		});
+	public CompletableFuture<Http2Response> getResponseFuture() {
+		return responseFuture;
 	}
 
 	/**
 	 * Get the response of the stream in the blocking way.
 	 * 
 	 * @return
-	 * @throws TimeoutException
+	 * @throws ConnectionException
 	 */
+	@Override
 	public Http2Response getResponse() throws ConnectionException {
+		return awaitResponse(Long.MAX_VALUE);
+	}
 
-		int idleTimeoutSeconds = Integer.getInteger("http2.response.timeout", 300);
-		// log("Start waiting for the response (idle timeout in seconds: " + idleTimeoutSeconds + ") ...");
+	/**
+	 * Get the response of the stream in the blocking way, waiting at most the
+	 * given time. The stream is reset with CANCEL once it's reached.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 * @throws ConnectionException
+	 */
+	@Override
+	public Http2Response getResponse(long timeout, TimeUnit unit) throws ConnectionException {
+		long now = System.currentTimeMillis();
+		long timeoutMillis = unit.toMillis(timeout);
+		return awaitResponse(timeoutMillis < Long.MAX_VALUE - now ? now + timeoutMillis : Long.MAX_VALUE);
+	}
 
-		String failReason = null;
-		long timeElapsed = -1;
+	private Http2Response awaitResponse(long deadline) throws ConnectionException {
+
+		long idleTimeoutMillis = Integer.getInteger("http2.response.timeout", 300) * 1000L;
 
 		long start = System.currentTimeMillis();
 
-		while (response == null || !response.isComplete()) {
+		while (true) {
 
-			// Check frame history to see if the idle time of the stream is larger than 300 seconds,
-			// if so, stop waiting:
-			if (lastReceivedNonControlFrame != null) {
-				timeElapsed = System.currentTimeMillis() - lastReceivedNonControlFrame.getTimestamp();
-				if (timeElapsed > idleTimeoutSeconds * 1000) {
-					failReason = "Failed to get response after " + timeElapsed
-							+ " milliseconds, the last received non-control frame is " + lastReceivedNonControlFrame;
-					break;
-				}
-			} else {
-				timeElapsed = System.currentTimeMillis() - start;
-				if (timeElapsed > idleTimeoutSeconds * 1000) {
-					failReason = "Failed to get response after " + timeElapsed
-							+ " milliseconds, no any non-control frame were received";
-					break;
-				}
+			long now = System.currentTimeMillis();
+			if (now >= deadline) {
+				cancel();
+				throw new ConnectionException(ErrorCodeRegistry.CANCEL,
+						"Failed to get response within the deadline, after " + (now - start) + " milliseconds");
 			}
 
-			// If a RST_STREAM frame is received, stop waiting immediately:
-			if (receivedResetFrame != null) {
-				failReason = "Failed to get response because RST_STREAM is received";
-				break;
+			// Stop waiting once the stream has been idle for longer than the
+			// timeout, the deadline moves on as non-control frames arrive:
+			FrameHistory lastFrame = lastReceivedNonControlFrame;
+			long lastActivity = lastFrame != null ? lastFrame.getTimestamp() : start;
+			long remaining = Math.min(lastActivity + idleTimeoutMillis, deadline) - now;
+			if (lastActivity + idleTimeoutMillis <= now) {
+				long timeElapsed = now - lastActivity;
+				// Stop the peer from sending more on the stream:
+				cancel();
+				throw new ConnectionException(ErrorCodeRegistry.UNKNOWN, lastFrame != null
+						? "Failed to get response after " + timeElapsed
+								+ " milliseconds, the last received non-control frame is " + lastFrame
+						: "Failed to get response after " + timeElapsed
+								+ " milliseconds, no any non-control frame were received");
 			}
 
 			try {
-				Thread.sleep(100);
+				return responseFuture.get(remaining, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// check the deadline and the idle time again
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ConnectionException(ErrorCodeRegistry.UNKNOWN, "Interrupted waiting for the response", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof ConnectionException) {
+					throw (ConnectionException) e.getCause();
+				}
+				throw new ConnectionException(ErrorCodeRegistry.UNKNOWN, "Failed to get response", e.getCause());
 			}
 
 		}
 
-		//return responseComplete ? response : null;
-		if (failReason == null) {
-			return response;
-		} else {
-			throw new ConnectionException(ErrorCodeRegistry.UNKNOWN, failReason);
-		}
-
 	}
 
 	/**
@@ -447,7 +598,9 @@ public class NettyStream implements Stream {
 	}
 
 	/**
-	 * Add the default DataFrame Consumer that will send back WINDOW_UPDATE frame
+	 * Add the default DataFrame Consumer that will send back WINDOW_UPDATE
+	 * frames. The credit is batched: a WINDOW_UPDATE is sent once the ratio of
+	 * the stream or connection window given by the config has been consumed.
 	 */
 	@Override
 	public void addDefaultDataFrameConsumer() {
@@ -455,8 +608,12 @@ public class NettyStream implements Stream {
 			int dataLength = dataFrame.getPayloadLength();
 			if (dataLength > 0) {
 				try {
-					this.windowUpdate(dataLength);
-					this.getConnection().windowUpdate(dataLength);
+					// No more DATA will be received on the stream after END_STREAM:
+					int increment = receiveWindow.consume(dataLength);
+					if (increment > 0 && !dataFrame.isEndStream()) {
+						this.windowUpdate(increment);
+					}
+					connection.dataConsumed(dataLength);
 				} catch (ConnectionException e) {
 					log("Failed to send WINDOW_UPDATE frame: " + e);
 				}
@@ -474,19 +631,19 @@ public class NettyStream implements Stream {
 
 		currentPromisedStream = null;
 
-		if (state.compareAndSet(State.RESERVED_REMOTE, State.HALF_CLOSED_LOCAL)) {
+		if (transition(Event.RECEIVE_HEADERS)) {
 			// this is a PUSH stream sent from Server
 		}
 
 		if (headersFrame.isEndStream()) {
+			endStreamReceived = true;
 			endStreamRemotely();
-		} else {
-
 		}
 
-		receivedHeaderBlock = headersFrame.getHeaderBlockFragment();
-		if (headersFrame.isEndHeaders()) {
-			processResponseHeaders();
+		Http2Headers headers = connection.decodeHeaderBlockFragment(id, headersFrame.getHeaderBlockFragmentBuffer(), true,
+				headersFrame.isEndHeaders());
+		if (headers != null) {
+			processResponseHeaders(headers);
 		}
 
 		if (headersFrame.isPriority()) {
@@ -503,13 +660,14 @@ public class NettyStream implements Stream {
 	 */
 	void onContinuation(ContinuationFrame continuationFrame) throws ConnectionException {
 
-		receivedHeaderBlock = combine(receivedHeaderBlock, continuationFrame.getHeaderBlockFragment());
+		Http2Headers headers = connection.decodeHeaderBlockFragment(id, continuationFrame.getHeaderBlockFragmentBuffer(),
+				false, continuationFrame.isEndHeaders());
 
-		if (continuationFrame.isEndHeaders()) {
+		if (headers != null) {
 			if (currentPromisedStream == null) {
-				processResponseHeaders();
+				processResponseHeaders(headers);
 			} else {
-				processPushRequest();
+				processPushRequest(headers);
 			}
 		}
 
@@ -522,7 +680,11 @@ public class NettyStream implements Stream {
 	 */
 	void onData(DataFrame dataFrame) {
 
-		dataBuffer.writeBytes(dataFrame.getData());
+		ByteBuf data = dataFrame.getDataBuffer();
+		if (dataBuffer == null) {
+			dataBuffer = allocateDataBuffer(data.readableBytes());
+		}
+		dataBuffer.writeBytes(data, data.readerIndex(), data.readableBytes());
 
 		int receivedDataLength = dataBuffer.readableBytes();
 
@@ -571,7 +733,7 @@ public class NettyStream implements Stream {
 			endStreamRemotely();
 			debugResponseCache(() -> "data not cached: " + receivedDataLength);
 			writeResponseEntity();
-			response.setComplete(true);
+			completeResponse();
 			if (cacheOutputStream != null) {
 				try {
 					cacheOutputStream.close();
@@ -609,6 +771,8 @@ public class NettyStream implements Stream {
 
 		if (!window.increment(increment)) {
 			reset(ErrorCodeRegistry.FLOW_CONTROL_ERROR);
+		} else {
+			connection.writePendingData();
 		}
 
 	}
@@ -626,9 +790,10 @@ public class NettyStream implements Stream {
 
 		connection.closeUnusedIdleStreams(id);
 
-		receivedHeaderBlock = pushPromiseFrame.getHeaderBlockFragment();
-		if (pushPromiseFrame.isEndHeaders()) {
-			processPushRequest();
+		Http2Headers headers = connection.decodeHeaderBlockFragment(id, pushPromiseFrame.getHeaderBlockFragmentBuffer(),
+				true, pushPromiseFrame.isEndHeaders());
+		if (headers != null) {
+			processPushRequest(headers);
 		}
 
 	}
@@ -640,16 +805,94 @@ public class NettyStream implements Stream {
 	 */
 	void onReset(ResetFrame resetFrame) {
 		this.receivedResetFrame = resetFrame;
-		state.set(State.RESET_REMOTE);
+		transition(Event.RECEIVE_RST_STREAM);
 	}
 
 	/**
-	 * Get the current state of the stream
+	 * Give up the stream which the peer has not processed before going away
+	 */
+	void onRefused() {
+		transition(Event.RECEIVE_GOAWAY);
+	}
+
+	/**
+	 * Add a listener called on every change of the stream state
 	 * 
-	 * @param state
+	 * @param listener
 	 */
-	void setState(State state) {
-		this.state.set(state);
+	@Override
+	public void addStateListener(StateListener listener) {
+		stateListeners.add(listener);
+	}
+
+	/**
+	 * Move the stream to the state the given event leads to, if any. It's
+	 * called by the event loop and by the callers sending frames on the stream,
+	 * so the state is changed with a compare-and-set rather than under a lock.
+	 * 
+	 * @param event
+	 * @return true if the state is changed
+	 */
+	boolean transition(Event event) {
+		for (;;) {
+			State current = state;
+			State next = Http2StreamTransitions.next(current, event);
+			if (next == null) {
+				return false;
+			}
+			if (STATE_UPDATER.compareAndSet(this, current, next)) {
+				onStateChange(current, next);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * React to a change of the stream state, then call the listeners on the
+	 * thread which has changed it
+	 * 
+	 * @param oldState
+	 * @param newState
+	 */
+	private void onStateChange(State oldState, State newState) {
+		switch (newState) {
+		case RESET_LOCAL:
+			failPendingData(new StreamException(id, sentResetError, "The stream is reset"));
+			failResponse(new StreamException(id, sentResetError, "Failed to get response because RST_STREAM is sent"));
+			break;
+		case RESET_REMOTE:
+			if (receivedResetFrame == null) {
+				// Refused by a GOAWAY:
+				StreamException refused = new StreamException(id, ErrorCodeRegistry.REFUSED_STREAM,
+						"The stream is not processed by the peer before GOAWAY");
+				failPendingData(refused);
+				failResponse(refused);
+				break;
+			}
+			ErrorCodeRegistry errorCode = receivedResetFrame.getErrorCode();
+			failPendingData(new StreamException(id, errorCode, "The stream is reset by peer"));
+			failResponse(new StreamException(id, errorCode, "Failed to get response because RST_STREAM is received"));
+			break;
+		case CLOSED:
+			reclaimIfDone();
+			break;
+		default:
+			break;
+		}
+		for (StateListener listener : connection.config().getStreamStateListeners()) {
+			notify(listener, oldState, newState);
+		}
+		for (StateListener listener : stateListeners) {
+			notify(listener, oldState, newState);
+		}
+	}
+
+	private void notify(StateListener listener, State oldState, State newState) {
+		try {
+			listener.onStateChange(this, oldState, newState);
+		} catch (RuntimeException e) {
+			log("Stream state listener failed: " + e);
+		}
 	}
 
 	/**
@@ -679,6 +922,10 @@ public class NettyStream implements Stream {
 		return window;
 	}
 
+	ReceiveWindow getReceiveWindow() {
+		return receiveWindow;
+	}
+
 	/**
 	 * An expressive text showing the stream
 	 * 
@@ -688,7 +935,7 @@ public class NettyStream implements Stream {
 		StringBuilder sb = new StringBuilder();
 		sb.append("{");
 		sb.append("ID: ").append(id).append(", ");
-		sb.append("State: ").append(state.get().name()).append(", ");
+		sb.append("State: ").append(state.name()).append(", ");
 		sb.append("Parent: ").append(parentStream != null ? parentStream.getId() : "null").append(", ");
 		sb.append("Dependents: ");
 		if (dependentStreams.isEmpty()) {
@@ -724,25 +971,32 @@ public class NettyStream implements Stream {
 	 * At the time the header block is received completely, this method gets
 	 * called
 	 * 
+	 * @param headers
 	 * @throws ConnectionException
 	 */
-	private void processResponseHeaders() throws ConnectionException {
-
-		Http2Headers headers = connection.decode(receivedHeaderBlock);
+	private void processResponseHeaders(Http2Headers headers) throws ConnectionException {
 
 		debugResponseHeader(headers);
 
 		if (response == null) {
 			// Headers:
 			response = new Http2ResponseImpl(id, headers);
+			Header contentLength = headers.first("content-length");
+			if (contentLength != null) {
+				try {
+					expectedContentLength = Long.parseLong(contentLength.getValue().trim());
+				} catch (NumberFormatException e) {
+					// the buffer grows as the DATA frames arrive
+				}
+			}
 		} else {
 			// Trailers:
 			writeResponseEntity();
 			response.trailers(headers);
 		}
 
-		if (state.get() == State.CLOSED) {
-			response.setComplete(true);
+		if (endStreamReceived) {
+			completeResponse();
 		}
 
 	}
@@ -751,12 +1005,13 @@ public class NettyStream implements Stream {
 	 * At the time the header block is received completely for PUSH, this method gets
 	 * called
 	 * 
+	 * @param headers
 	 * @throws ConnectionException
 	 */
-	private void processPushRequest() throws ConnectionException {
+	private void processPushRequest(Http2Headers headers) throws ConnectionException {
 
 		PushRequest pushRequest = new PushRequest(currentPushPromiseFrame.getStreamId(),
-				currentPushPromiseFrame.getPromisedStreamId(), connection.decode(receivedHeaderBlock));
+				currentPushPromiseFrame.getPromisedStreamId(), headers);
 
 		debugPushRequest(pushRequest);
 
@@ -769,18 +1024,13 @@ public class NettyStream implements Stream {
 	}
 
 	private void endStreamLocally() {
-		if (state.compareAndSet(State.OPEN, State.HALF_CLOSED_LOCAL)) {
-			// request ends
-		}
+		// request ends, closing the stream if the response has ended first:
+		transition(Event.SEND_END_STREAM);
 	}
 
 	private void endStreamRemotely() {
-		if (state.compareAndSet(State.OPEN, State.HALF_CLOSED_REMOTE)) {
-			// this will not happen on client side
-		}
-		if (state.compareAndSet(State.HALF_CLOSED_LOCAL, State.CLOSED)) {
-			// response ends if no CONTINUATION frames
-		}
+		// response ends if no CONTINUATION frames:
+		transition(Event.RECEIVE_END_STREAM);
 	}
 
 	/**
@@ -821,6 +1071,33 @@ public class NettyStream implements Stream {
 
 	}
 
+	/**
+	 * Remove the stream from the priority tree, its dependents become
+	 * dependents of its parent and share its weight (RFC 7540, Section 5.3.4)
+	 */
+	private void removeFromPriorityTree() {
+		if (parentStream == null || !parentStream.dependentStreams.contains(this)) {
+			return;
+		}
+		int totalWeight = 0;
+		for (NettyStream dependent : dependentStreams) {
+			totalWeight += dependent.weight;
+		}
+		for (NettyStream dependent : new ArrayList<NettyStream>(dependentStreams)) {
+			dependent.weight = Math.max(1, this.weight * dependent.weight / totalWeight);
+			dependent.setParent(parentStream);
+		}
+		parentStream.dependentStreams.remove(this);
+	}
+
+	NettyStream parent() {
+		return parentStream;
+	}
+
+	List<NettyStream> dependentStreams() {
+		return dependentStreams;
+	}
+
 	private List<NettyStream> ancestors() {
 		List<NettyStream> ancestors = new ArrayList<NettyStream>();
 		NettyStream parent = this.parentStream;
@@ -839,49 +1116,190 @@ public class NettyStream implements Stream {
 		}
 	}
 
+	/**
+	 * Complete the response and wake up the ones waiting for it
+	 */
+	private void completeResponse() {
+		response.setComplete(true);
+		Http2Response completed = response;
+		connection.runCallback(() -> responseFuture.complete(completed));
+		responseDone = true;
+		reclaimIfDone();
+	}
+
+	/**
+	 * Fail the response if it's not complete yet, e.g. when the connection is
+	 * lost
+	 * 
+	 * @param cause
+	 */
+	void failResponse(Throwable cause) {
+		fail(responseFuture, cause);
+		responseDone = true;
+		reclaimIfDone();
+	}
+
+	/**
+	 * Remove the stream from the connection once it's closed or reset and its
+	 * response has been handed off. A closed stream is kept until its queued
+	 * DATA is written.
+	 */
+	private void reclaimIfDone() {
+		if (responseDone && Http2StreamTransitions.isTerminal(state)) {
+			connection.runInEventLoop(() -> {
+				if (state != State.CLOSED || pendingData.isEmpty()) {
+					connection.reclaim(this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Release what the stream holds once it's removed from the connection,
+	 * it's called in the event loop
+	 */
+	void onReclaimed() {
+		PendingData pending;
+		while ((pending = pendingData.poll()) != null) {
+			fail(pending.promise, new StreamException(id, ErrorCodeRegistry.STREAM_CLOSED, "The stream is closed"));
+		}
+		removeFromPriorityTree();
+		this.currentPromisedStream = null;
+		this.currentPushPromiseFrame = null;
+		releaseDataBuffer();
+		if (state == State.RESET_LOCAL || state == State.RESET_REMOTE) {
+			discardResponseCache();
+		}
+	}
+
+	/**
+	 * Release what the stream holds when the connection is lost, whatever its
+	 * state since it will never reach a terminal one. It's called in the event
+	 * loop, once the stream is removed from the connection.
+	 */
+	void onConnectionLost() {
+		onReclaimed();
+		if (response == null || !response.isComplete()) {
+			discardResponseCache();
+		}
+	}
+
+	/**
+	 * Remove the cache file of a response which will never complete
+	 */
+	private void discardResponseCache() {
+		if (cacheOutputStream != null) {
+			try {
+				cacheOutputStream.close();
+			} catch (IOException e) {
+				log("Error closing cache file output stream: " + e);
+			}
+			cacheOutputStream = null;
+		}
+		if (cacheFile != null) {
+			try {
+				Files.deleteIfExists(cacheFile);
+			} catch (IOException e) {
+				log("Unable to delete cache file (" + cacheFile + ") due to " + e);
+			}
+			cacheFile = null;
+		}
+	}
+
+	/**
+	 * Complete the promise once the frame is written, on the callback executor
+	 * 
+	 * @param promise
+	 * @param future
+	 */
+	private void completeOnWrite(CompletableFuture<Void> promise, ChannelFuture future) {
+		future.addListener(f -> {
+			if (f.isSuccess()) {
+				connection.runCallback(() -> promise.complete(null));
+			} else {
+				fail(promise, f.cause());
+			}
+		});
+	}
+
+	private void fail(CompletableFuture<?> future, Throwable cause) {
+		connection.runCallback(() -> future.completeExceptionally(cause));
+	}
+
+	/**
+	 * Allocate the buffer of the response body from the pool of the
+	 * connection, presized from the content-length of the response if any. The
+	 * body beyond the cache threshold is written to the cache file, so the
+	 * buffer is not presized beyond it.
+	 * 
+	 * @param firstDataLength
+	 * @return
+	 */
+	private ByteBuf allocateDataBuffer(int firstDataLength) {
+		int initialCapacity = firstDataLength;
+		if (expectedContentLength > firstDataLength) {
+			initialCapacity = (int) Math.min(expectedContentLength, cacheThreshold);
+		}
+		return connection.alloc().heapBuffer(Math.max(initialCapacity, firstDataLength));
+	}
+
+	private void releaseDataBuffer() {
+		if (dataBuffer != null) {
+			dataBuffer.release();
+			dataBuffer = null;
+		}
+	}
+
 	private void writeResponseEntity() {
+		if (dataBuffer == null) {
+			// No DATA received:
+			response.entity(new byte[0]);
+			return;
+		}
 		byte[] tmp = new byte[dataBuffer.readableBytes()];
 		dataBuffer.readBytes(tmp);
 		response.entity(tmp);
+		releaseDataBuffer();
 	}
 
 	private void drain() {
 		if (connection.config().isDrainStreamOnClose()) {
 			//log("removed stream: " + this);
-			connection.streams().remove(id);
-			this.currentPromisedStream = null;
-			this.currentPushPromiseFrame = null;
-			this.dataBuffer = null;
-			this.receivedHeaderBlock = null;
-			this.receivedResetFrame = null;
+			connection.runInEventLoop(() -> connection.reclaim(this));
 		}
 	}
 
-	private static class StateWrapper {
+	/**
+	 * A DATA frame waiting for the flow-control windows, of which the first
+	 * bytes may have been sent already
+	 */
+	private static class PendingData {
 
-		private State state;
+		private final DataFrame frame;
+		private final CompletableFuture<Void> promise;
+		private ByteBuf remaining;
 
-		public StateWrapper(State state) {
-			this.state = state;
+		private PendingData(DataFrame frame, CompletableFuture<Void> promise) {
+			this.frame = frame;
+			this.promise = promise;
 		}
 
-		public synchronized boolean compareAndSet(State expect, State update) {
-
-			if (expect == state) {
-				set(update);
-				return true;
-			} else {
-				return false;
-			}
-
+		private int remaining() {
+			return remaining == null ? frame.getPayloadLength() : remaining.readableBytes();
 		}
 
-		public State get() {
-			return state;
+		private DataFrame nextFragment(int length) {
+			if (remaining == null) {
+				remaining = frame.getDataBuffer().slice();
+			}
+			return new DataFrame(frame.getStreamId(), false, remaining.readSlice(length));
 		}
 
-		public void set(State state) {
-			this.state = state;
+		private DataFrame remainingFrame() {
+			if (remaining == null) {
+				return frame;
+			}
+			return new DataFrame(frame.getStreamId(), frame.isEndStream(), remaining);
 		}
 
 	}
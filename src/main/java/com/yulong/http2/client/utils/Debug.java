@@ -6,6 +6,7 @@ import java.util.function.Supplier;
 
 import io.netty.buffer.ByteBuf;
 import com.yulong.http2.client.common.FlowControlWindow;
+import com.yulong.http2.client.common.ReceiveWindow;
 import com.yulong.http2.client.message.Http2Headers;
 import com.yulong.http2.client.message.Http2Response;
 import com.yulong.http2.client.message.PushRequest;
@@ -70,4 +71,10 @@ public class Debug {
 		}
 	}
 
+	public static void debugFlowControl(ReceiveWindow window, String info) {
+		if (Boolean.getBoolean("http2.debug.flowcontrol")) {
+			log(info + ": " + window);
+		}
+	}
+
 }
@@ -0,0 +1,37 @@
+package com.yulong.http2.client.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ReceiveWindowTest {
+
+	@Test
+	public void updateOnceTheRatioIsConsumed() {
+		ReceiveWindow window = new ReceiveWindow(1, 1000, 0.5f);
+		assertEquals(0, window.consume(300));
+		assertEquals(0, window.consume(199));
+		assertEquals(500, window.consume(1));
+		// Counting again from there:
+		assertEquals(0, window.consume(499));
+		assertEquals(600, window.consume(101));
+	}
+
+	@Test
+	public void updateForEveryFrameWithZeroRatio() {
+		ReceiveWindow window = new ReceiveWindow(1, 1000, 0);
+		assertEquals(10, window.consume(10));
+		assertEquals(1, window.consume(1));
+	}
+
+	@Test
+	public void resizeMovesTheThreshold() {
+		ReceiveWindow window = new ReceiveWindow(1, 1000, 0.5f);
+		assertEquals(0, window.consume(400));
+		window.resize(4000);
+		assertEquals(4000, window.getSize());
+		assertEquals(0, window.consume(1000));
+		assertEquals(2000, window.consume(600));
+	}
+
+}
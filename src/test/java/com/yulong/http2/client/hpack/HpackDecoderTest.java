@@ -0,0 +1,244 @@
+package com.yulong.http2.client.hpack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.common.ErrorCodeRegistry;
+import com.yulong.http2.client.message.Header;
+import com.yulong.http2.client.message.Http2Headers;
+
+/**
+ * The examples of RFC 7541, Appendix C, decoded whole and fragment by
+ * fragment
+ */
+public class HpackDecoderTest {
+
+	static final String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+	static final String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+	static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+	// C.3 and C.4, the requests without and with Huffman coding:
+	static final String[][] REQUEST_HEADERS = { //
+			{ ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com" },
+			{ ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control",
+					"no-cache" },
+			{ ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+					"custom-key", "custom-value" } };
+
+	static final String[] C3 = { //
+			"8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+			"8286 84be 5808 6e6f 2d63 6163 6865",
+			"8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65" };
+
+	static final String[] C4 = { //
+			"8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff",
+			"8286 84be 5886 a8eb 1064 9cbf",
+			"8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf" };
+
+	// C.5 and C.6, the responses without and with Huffman coding, with a
+	// dynamic table of 256 octets:
+	static final String[][] RESPONSE_HEADERS = { //
+			{ ":status", "302", "cache-control", "private", "date", DATE_1, "location", "https://www.example.com" },
+			{ ":status", "307", "cache-control", "private", "date", DATE_1, "location", "https://www.example.com" },
+			{ ":status", "200", "cache-control", "private", "date", DATE_2, "location", "https://www.example.com",
+					"content-encoding", "gzip", "set-cookie", COOKIE } };
+
+	static final String[] C5 = { //
+			"4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 "
+					+ "3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+			"4803 3330 37c1 c0bf",
+			"88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d 54c0 5a04 677a 6970 "
+					+ "7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49 553b 206d "
+					+ "6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31" };
+
+	static final String[] C6 = { //
+			"4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6 2d1b ff6e 919d 29ad "
+					+ "1718 63c7 8f0b 97c8 e9ae 82ae 43d3",
+			"4883 640e ffc1 c0bf",
+			"88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab 77ad 94e7 821d d7f2 "
+					+ "e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106 "
+					+ "3d50 07" };
+
+	@Test
+	public void literalWithIndexing() throws ConnectionException {
+		HpackDecoder decoder = new HpackDecoder(4096);
+		assertHeaders(new String[] { "custom-key", "custom-header" }, decode(decoder,
+				"400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+		// Now in the dynamic table:
+		assertHeaders(new String[] { "custom-key", "custom-header" }, decode(decoder, "be"));
+	}
+
+	@Test
+	public void literalWithoutIndexing() throws ConnectionException {
+		HpackDecoder decoder = new HpackDecoder(4096);
+		assertHeaders(new String[] { ":path", "/sample/path" },
+				decode(decoder, "040c 2f73 616d 706c 652f 7061 7468"));
+		assertDynamicTableEmpty(decoder);
+	}
+
+	@Test
+	public void literalNeverIndexed() throws ConnectionException {
+		HpackDecoder decoder = new HpackDecoder(4096);
+		assertHeaders(new String[] { "password", "secret" },
+				decode(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74"));
+		assertDynamicTableEmpty(decoder);
+	}
+
+	@Test
+	public void indexed() throws ConnectionException {
+		HpackDecoder decoder = new HpackDecoder(4096);
+		assertHeaders(new String[] { ":method", "GET" }, decode(decoder, "82"));
+	}
+
+	@Test
+	public void requestsWithoutHuffman() throws ConnectionException {
+		assertSequence(4096, C3, REQUEST_HEADERS);
+	}
+
+	@Test
+	public void requestsWithHuffman() throws ConnectionException {
+		assertSequence(4096, C4, REQUEST_HEADERS);
+	}
+
+	@Test
+	public void responsesWithoutHuffman() throws ConnectionException {
+		assertSequence(256, C5, RESPONSE_HEADERS);
+	}
+
+	@Test
+	public void responsesWithHuffman() throws ConnectionException {
+		assertSequence(256, C6, RESPONSE_HEADERS);
+	}
+
+	/**
+	 * Each header block split in two at every position, the dynamic table
+	 * carried over from one block to the next
+	 */
+	@Test
+	public void fragmentedInTwo() throws ConnectionException {
+		for (String[] blocks : new String[][] { C3, C4, C5, C6 }) {
+			String[][] expected = blocks == C3 || blocks == C4 ? REQUEST_HEADERS : RESPONSE_HEADERS;
+			int tableSize = blocks == C3 || blocks == C4 ? 4096 : 256;
+			int longest = 0;
+			for (String block : blocks) {
+				longest = Math.max(longest, hex(block).length);
+			}
+			for (int split = 0; split <= longest; split++) {
+				HpackDecoder decoder = new HpackDecoder(tableSize);
+				for (int i = 0; i < blocks.length; i++) {
+					byte[] block = hex(blocks[i]);
+					int at = Math.min(split, block.length);
+					Http2Headers headers = decodeFragments(decoder, block, at, block.length - at);
+					assertHeaders(expected[i], headers);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void fragmentedOctetByOctet() throws ConnectionException {
+		byte[] block = hex(C6[2]);
+		int[] lengths = new int[block.length];
+		Arrays.fill(lengths, 1);
+		HpackDecoder decoder = new HpackDecoder(256);
+		decode(decoder, C6[0]);
+		decode(decoder, C6[1]);
+		assertHeaders(RESPONSE_HEADERS[2], decodeFragments(decoder, block, lengths));
+	}
+
+	@Test
+	public void truncatedBlock() throws ConnectionException {
+		HpackDecoder decoder = new HpackDecoder(4096);
+		byte[] block = hex(C4[0]);
+		decoder.beginHeaderBlock(new Http2Headers(null), Integer.MAX_VALUE);
+		decoder.decodeFragment(Unpooled.wrappedBuffer(block, 0, block.length - 1));
+		try {
+			decoder.endHeaderBlock();
+			fail("A truncated header block must be a COMPRESSION_ERROR");
+		} catch (ConnectionException e) {
+			assertEquals(ErrorCodeRegistry.COMPRESSION_ERROR, e.GetError());
+		}
+	}
+
+	@Test
+	public void headerListSizeExceeded() throws ConnectionException {
+		HpackDecoder decoder = new HpackDecoder(4096);
+		Http2Headers headers = new Http2Headers(null);
+		// The first request is 180 octets, not enough to be a connection error:
+		assertFalse(decoder.decode(Unpooled.wrappedBuffer(hex(C4[0])), headers, 150));
+		assertEquals(0, headers.size());
+		// The dynamic table is still in sync with the encoder:
+		headers = new Http2Headers(null);
+		assertTrue(decoder.decode(Unpooled.wrappedBuffer(hex(C4[1])), headers, 4096));
+		assertHeaders(REQUEST_HEADERS[1], headers);
+	}
+
+	private static void assertSequence(int tableSize, String[] blocks, String[][] expected)
+			throws ConnectionException {
+		HpackDecoder decoder = new HpackDecoder(tableSize);
+		for (int i = 0; i < blocks.length; i++) {
+			assertHeaders(expected[i], decode(decoder, blocks[i]));
+		}
+	}
+
+	private static void assertDynamicTableEmpty(HpackDecoder decoder) throws ConnectionException {
+		// The first index of the dynamic table:
+		try {
+			decode(decoder, "be");
+			fail("The dynamic table must be empty");
+		} catch (ConnectionException e) {
+			assertEquals(ErrorCodeRegistry.COMPRESSION_ERROR, e.GetError());
+		}
+	}
+
+	static Http2Headers decode(HpackDecoder decoder, String block) throws ConnectionException {
+		Http2Headers headers = new Http2Headers(null);
+		assertTrue(decoder.decode(Unpooled.wrappedBuffer(hex(block)), headers, Integer.MAX_VALUE));
+		return headers;
+	}
+
+	private static Http2Headers decodeFragments(HpackDecoder decoder, byte[] block, int... lengths)
+			throws ConnectionException {
+		Http2Headers headers = new Http2Headers(null);
+		decoder.beginHeaderBlock(headers, Integer.MAX_VALUE);
+		int offset = 0;
+		for (int length : lengths) {
+			ByteBuf fragment = Unpooled.wrappedBuffer(block, offset, length);
+			decoder.decodeFragment(fragment);
+			offset += length;
+		}
+		assertTrue(decoder.endHeaderBlock());
+		return headers;
+	}
+
+	static void assertHeaders(String[] expected, Http2Headers headers) {
+		Header[] actual = headers.all();
+		String[] fields = new String[actual.length * 2];
+		for (int i = 0; i < actual.length; i++) {
+			fields[2 * i] = actual[i].getName();
+			fields[2 * i + 1] = actual[i].getValue();
+		}
+		assertArrayEquals(expected, fields);
+	}
+
+	static byte[] hex(String octets) {
+		String digits = octets.replace(" ", "");
+		byte[] bytes = new byte[digits.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+}
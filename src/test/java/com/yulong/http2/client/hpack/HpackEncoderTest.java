@@ -0,0 +1,96 @@
+package com.yulong.http2.client.hpack;
+
+import static com.yulong.http2.client.hpack.HpackDecoderTest.C4;
+import static com.yulong.http2.client.hpack.HpackDecoderTest.C6;
+import static com.yulong.http2.client.hpack.HpackDecoderTest.REQUEST_HEADERS;
+import static com.yulong.http2.client.hpack.HpackDecoderTest.RESPONSE_HEADERS;
+import static com.yulong.http2.client.hpack.HpackDecoderTest.assertHeaders;
+import static com.yulong.http2.client.hpack.HpackDecoderTest.hex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.message.Http2Headers;
+
+/**
+ * The encoder against the examples of RFC 7541, Appendix C, which index every
+ * header field and Huffman code the strings
+ */
+public class HpackEncoderTest {
+
+	@Test
+	public void requestsWithHuffman() {
+		HpackEncoder encoder = new HpackEncoder(4096);
+		for (int i = 0; i < C4.length; i++) {
+			assertArrayEquals(hex(C4[i]), encode(encoder, REQUEST_HEADERS[i]));
+		}
+	}
+
+	@Test
+	public void responsesWithHuffman() {
+		HpackEncoder encoder = new HpackEncoder(256);
+		// The next ones differ: the encoder doesn't Huffman code "307", which
+		// is no shorter, and never indexes set-cookie:
+		assertArrayEquals(hex(C6[0]), encode(encoder, RESPONSE_HEADERS[0]));
+	}
+
+	/**
+	 * The cookies are sent as never indexed literals, and the decoder of the
+	 * peer is kept in sync across the evictions
+	 */
+	@Test
+	public void roundTrip() throws ConnectionException {
+		HpackEncoder encoder = new HpackEncoder(256);
+		HpackDecoder decoder = new HpackDecoder(256);
+		for (String[] fields : RESPONSE_HEADERS) {
+			byte[] block = encode(encoder, fields);
+			Http2Headers headers = new Http2Headers(null);
+			assertTrue(decoder.decode(Unpooled.wrappedBuffer(block), headers, Integer.MAX_VALUE));
+			assertHeaders(fields, headers);
+		}
+		// The set-cookie field, name index 55, never indexed:
+		byte[] block = encode(encoder, new String[] { "set-cookie", "a=b" });
+		assertEquals(0x1F, block[0] & 0xFF);
+		assertEquals(55 - 15, block[1] & 0xFF);
+	}
+
+	@Test
+	public void tableSizeUpdate() throws ConnectionException {
+		HpackEncoder encoder = new HpackEncoder(4096);
+		HpackDecoder decoder = new HpackDecoder(4096);
+		encode(encoder, REQUEST_HEADERS[0]);
+		decoder.decode(Unpooled.wrappedBuffer(hex(C4[0])), new Http2Headers(null), Integer.MAX_VALUE);
+
+		decoder.setMaxHeaderTableSize(0);
+		ByteBuf out = Unpooled.buffer();
+		encoder.setMaxHeaderTableSize(out, 0);
+		encoder.encodeHeaders(out, headers(REQUEST_HEADERS[0]));
+		assertEquals(0x20, out.getUnsignedByte(0));
+
+		Http2Headers headers = new Http2Headers(null);
+		assertTrue(decoder.decode(out, headers, Integer.MAX_VALUE));
+		assertHeaders(REQUEST_HEADERS[0], headers);
+	}
+
+	private static byte[] encode(HpackEncoder encoder, String[] fields) {
+		ByteBuf out = Unpooled.buffer();
+		encoder.encodeHeaders(out, headers(fields));
+		return ByteBufUtil.getBytes(out);
+	}
+
+	private static Http2Headers headers(String[] fields) {
+		Http2Headers headers = new Http2Headers(null);
+		for (int i = 0; i < fields.length; i += 2) {
+			headers.add(fields[i], fields[i + 1]);
+		}
+		return headers;
+	}
+
+}
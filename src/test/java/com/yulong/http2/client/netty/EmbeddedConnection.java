@@ -0,0 +1,76 @@
+package com.yulong.http2.client.netty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.channel.DefaultChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import com.yulong.http2.client.ConnectionConfig;
+import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.frame.Frame;
+import com.yulong.http2.client.frame.HeadersFrame;
+import com.yulong.http2.client.message.Http2Headers;
+
+/**
+ * A connection over an embedded channel: the frames written are read back
+ * as they are, and the frames of the peer are passed to the handler as if
+ * decoded
+ */
+class EmbeddedConnection {
+
+	final EmbeddedChannel channel = new EmbeddedChannel(false, false);
+	final Http2FrameHandler handler;
+
+	EmbeddedConnection(ConnectionConfig config) throws Exception {
+		handler = new Http2FrameHandler(new DefaultChannelPromise(channel), "localhost", 8080, "http", config);
+		channel.pipeline().addLast(handler);
+		channel.register();
+		// The connection preface:
+		written();
+	}
+
+	/**
+	 * Open a stream with a request which has a body
+	 * 
+	 * @return
+	 * @throws ConnectionException
+	 */
+	NettyStream openStream() throws ConnectionException {
+		NettyStream stream = handler.newStream();
+		Http2Headers headers = new Http2Headers(handler, "POST", "/");
+		stream.headers(new HeadersFrame(stream.getId(), false, true, headers.toHeaderBlock()));
+		return stream;
+	}
+
+	/**
+	 * Process a frame of the peer
+	 * 
+	 * @param frame
+	 */
+	void receive(Frame frame) {
+		channel.writeInbound(frame);
+		channel.runPendingTasks();
+	}
+
+	/**
+	 * Take the frames written so far, after the pending flushes
+	 * 
+	 * @return
+	 */
+	List<Frame> written() {
+		channel.runPendingTasks();
+		List<Frame> frames = new ArrayList<>();
+		Object msg;
+		while ((msg = channel.readOutbound()) != null) {
+			if (msg instanceof Frame) {
+				frames.add((Frame) msg);
+			} else {
+				ReferenceCountUtil.release(msg);
+			}
+		}
+		return frames;
+	}
+
+}
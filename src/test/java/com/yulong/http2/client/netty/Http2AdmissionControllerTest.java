@@ -0,0 +1,146 @@
+package com.yulong.http2.client.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.common.ErrorCodeRegistry;
+import com.yulong.http2.client.common.StreamAdmissionStats;
+
+public class Http2AdmissionControllerTest {
+
+	private final Http2AdmissionController admission = new Http2AdmissionController();
+
+	@Test
+	public void admitsUpToTheLimit() {
+		admission.setLimit(2);
+		assertTrue(open().isDone());
+		assertTrue(open().isDone());
+		CompletableFuture<Void> third = admission.admit();
+		assertFalse(third.isDone());
+
+		StreamAdmissionStats stats = admission.stats();
+		assertEquals(2, stats.getActiveStreams());
+		assertEquals(1, stats.getQueueDepth());
+		assertEquals(1, stats.getQueued());
+	}
+
+	@Test
+	public void reservedPlaceCountsAgainstTheLimit() {
+		admission.setLimit(1);
+		// Admitted but the stream not created yet:
+		assertTrue(admission.admit().isDone());
+		assertFalse(admission.admit().isDone());
+	}
+
+	@Test
+	public void drainsInFifoOrder() {
+		admission.setLimit(1);
+		open();
+		CompletableFuture<Void> second = admission.admit();
+		CompletableFuture<Void> third = admission.admit();
+
+		admission.closed();
+		assertTrue(second.isDone());
+		assertFalse(third.isDone());
+
+		admission.opened();
+		admission.closed();
+		assertTrue(third.isDone());
+		assertEquals(3, admission.stats().getAdmitted());
+	}
+
+	@Test
+	public void laterRequestsQueueBehindTheWaiters() {
+		admission.setLimit(1);
+		open();
+		CompletableFuture<Void> second = admission.admit();
+		admission.setLimit(2);
+		assertTrue(second.isDone());
+		// The place of the second one is reserved until its stream is created:
+		assertFalse(admission.admit().isDone());
+	}
+
+	@Test
+	public void cancelledWaiterIsSkipped() {
+		admission.setLimit(1);
+		open();
+		CompletableFuture<Void> cancelled = admission.admit();
+		CompletableFuture<Void> next = admission.admit();
+		assertTrue(cancelled.cancel(false));
+
+		admission.closed();
+		assertTrue(cancelled.isCancelled());
+		assertTrue(next.isDone());
+		assertFalse(next.isCompletedExceptionally());
+		assertEquals(0, admission.stats().getQueueDepth());
+		assertEquals(2, admission.stats().getAdmitted());
+	}
+
+	@Test
+	public void cancelledWaiterDoesNotHoldAPlace() {
+		admission.setLimit(1);
+		open();
+		admission.admit().cancel(false);
+		admission.closed();
+		// The place is free again:
+		assertTrue(admission.admit().isDone());
+	}
+
+	@Test
+	public void zeroLimitQueuesUntilRaised() {
+		admission.setLimit(0);
+		CompletableFuture<Void> waiting = admission.admit();
+		assertFalse(waiting.isDone());
+		admission.setLimit(1);
+		assertTrue(waiting.isDone());
+	}
+
+	@Test
+	public void negativeLimitIsUnlimited() {
+		// SETTINGS_MAX_CONCURRENT_STREAMS above Integer.MAX_VALUE:
+		admission.setLimit(-1);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(open().isDone());
+		}
+	}
+
+	@Test
+	public void failAllFailsTheWaitersAndTheNextOnes() throws InterruptedException {
+		admission.setLimit(1);
+		open();
+		CompletableFuture<Void> waiting = admission.admit();
+		ConnectionException cause = new ConnectionException(ErrorCodeRegistry.REFUSED_STREAM, "going away");
+		admission.failAll(cause);
+
+		assertFailedWith(cause, waiting);
+		admission.closed();
+		assertFailedWith(cause, admission.admit());
+	}
+
+	private CompletableFuture<Void> open() {
+		CompletableFuture<Void> future = admission.admit();
+		if (future.isDone()) {
+			admission.opened();
+		}
+		return future;
+	}
+
+	private static void assertFailedWith(Throwable cause, CompletableFuture<Void> future)
+			throws InterruptedException {
+		assertTrue(future.isCompletedExceptionally());
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			assertSame(cause, e.getCause());
+		}
+	}
+
+}
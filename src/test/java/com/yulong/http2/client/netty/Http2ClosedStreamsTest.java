@@ -0,0 +1,57 @@
+package com.yulong.http2.client.netty;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class Http2ClosedStreamsTest {
+
+	private final Http2ClosedStreams closedStreams = new Http2ClosedStreams();
+
+	@Test
+	public void closedUpToTheHighestIdentifierOfItsInitiator() {
+		closedStreams.add(5, false);
+		assertTrue(closedStreams.contains(1));
+		assertTrue(closedStreams.contains(5));
+		assertFalse(closedStreams.contains(7));
+		// The pushed streams are counted apart:
+		assertFalse(closedStreams.contains(2));
+
+		closedStreams.add(4, false);
+		assertTrue(closedStreams.contains(2));
+		assertFalse(closedStreams.contains(6));
+	}
+
+	@Test
+	public void onlyTheResetStreamsAreReset() {
+		closedStreams.add(1, false);
+		closedStreams.add(3, true);
+		closedStreams.add(4, true);
+		assertFalse(closedStreams.isReset(1));
+		assertTrue(closedStreams.isReset(3));
+		assertTrue(closedStreams.isReset(4));
+		assertFalse(closedStreams.isReset(5));
+	}
+
+	@Test
+	public void resetHistoryForgetsTheOldestStreams() {
+		int history = Integer.getInteger("http2.reset.stream.history", 65536);
+		closedStreams.add(1, true);
+		closedStreams.add(3, true);
+		int last = 1 + 4 * history;
+		closedStreams.add(last, true);
+
+		assertFalse(closedStreams.isReset(1));
+		assertFalse(closedStreams.isReset(3));
+		assertTrue(closedStreams.isReset(last));
+		// Still known to be closed:
+		assertTrue(closedStreams.contains(3));
+
+		// The last ones of the history are kept when sliding:
+		closedStreams.add(last + history, true);
+		assertTrue(closedStreams.isReset(last));
+		assertTrue(closedStreams.isReset(last + history));
+	}
+
+}
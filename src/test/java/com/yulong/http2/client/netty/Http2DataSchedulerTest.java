@@ -0,0 +1,124 @@
+package com.yulong.http2.client.netty;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.http2.client.ConnectionConfig;
+import com.yulong.http2.client.ConnectionException;
+import com.yulong.http2.client.frame.DataFrame;
+import com.yulong.http2.client.frame.Frame;
+import com.yulong.http2.client.frame.PriorityFrame;
+import com.yulong.http2.client.frame.WindowUpdateFrame;
+
+/**
+ * The shares of the connection window among the streams with queued DATA
+ */
+public class Http2DataSchedulerTest {
+
+	private static final int QUANTUM = 1024;
+
+	private EmbeddedConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		connection = new EmbeddedConnection(new ConnectionConfig().setDataSchedulingQuantum(QUANTUM));
+		// Use up the connection window, so that the DATA below is queued:
+		NettyStream filler = connection.openStream();
+		filler.data(new DataFrame(filler.getId(), true, new byte[65535]));
+		connection.written();
+	}
+
+	@Test
+	public void siblingsShareByWeight() throws ConnectionException {
+		NettyStream light = connection.openStream();
+		NettyStream heavy = connection.openStream();
+		light.priority(new PriorityFrame(light.getId(), false, 0, 16));
+		heavy.priority(new PriorityFrame(heavy.getId(), false, 0, 48));
+		light.data(new DataFrame(light.getId(), true, new byte[60000]));
+		heavy.data(new DataFrame(heavy.getId(), true, new byte[60000]));
+		assertEquals(0, sent().size());
+
+		connection.receive(new WindowUpdateFrame(0, 40000));
+		Map<Integer, Integer> sent = sent();
+		assertEquals(40000, sent.get(light.getId()) + sent.get(heavy.getId()));
+		assertEquals(10000, sent.get(light.getId()), QUANTUM);
+		assertEquals(30000, sent.get(heavy.getId()), QUANTUM);
+	}
+
+	@Test
+	public void equalWeightsShareEqually() throws ConnectionException {
+		NettyStream[] streams = new NettyStream[4];
+		for (int i = 0; i < streams.length; i++) {
+			streams[i] = connection.openStream();
+			streams[i].data(new DataFrame(streams[i].getId(), true, new byte[60000]));
+		}
+
+		connection.receive(new WindowUpdateFrame(0, 40000));
+		Map<Integer, Integer> sent = sent();
+		for (NettyStream stream : streams) {
+			assertEquals(10000, sent.get(stream.getId()), QUANTUM);
+		}
+	}
+
+	@Test
+	public void dependentGetsWhatItsParentCannotUse() throws ConnectionException {
+		NettyStream parent = connection.openStream();
+		NettyStream child = connection.openStream();
+		child.priority(new PriorityFrame(child.getId(), true, parent.getId(), 16));
+		parent.data(new DataFrame(parent.getId(), true, new byte[5000]));
+		child.data(new DataFrame(child.getId(), true, new byte[60000]));
+
+		connection.receive(new WindowUpdateFrame(0, 3000));
+		Map<Integer, Integer> sent = sent();
+		assertEquals(3000, (int) sent.get(parent.getId()));
+		assertEquals(null, sent.get(child.getId()));
+
+		connection.receive(new WindowUpdateFrame(0, 10000));
+		sent = sent();
+		assertEquals(2000, (int) sent.get(parent.getId()));
+		assertEquals(8000, (int) sent.get(child.getId()));
+	}
+
+	@Test
+	public void streamOutOfWindowLeavesItToTheOthers() throws ConnectionException {
+		NettyStream blocked = connection.openStream();
+		NettyStream other = connection.openStream();
+		// More than the windows of the streams:
+		blocked.data(new DataFrame(blocked.getId(), true, new byte[70000]));
+		other.data(new DataFrame(other.getId(), true, new byte[100000]));
+
+		connection.receive(new WindowUpdateFrame(0, 140000));
+		Map<Integer, Integer> sent = sent();
+		assertEquals(65535, (int) sent.get(blocked.getId()));
+		assertEquals(65535, (int) sent.get(other.getId()));
+
+		// Only one of them gets more window, it gets all of the connection's:
+		connection.receive(new WindowUpdateFrame(other.getId(), 10000));
+		sent = sent();
+		assertEquals(null, sent.get(blocked.getId()));
+		assertEquals(140000 - 2 * 65535, (int) sent.get(other.getId()));
+	}
+
+	/**
+	 * The DATA bytes written since the last call, by stream
+	 * 
+	 * @return
+	 */
+	private Map<Integer, Integer> sent() {
+		Map<Integer, Integer> sent = new HashMap<>();
+		List<Frame> frames = connection.written();
+		for (Frame frame : frames) {
+			if (frame instanceof DataFrame) {
+				sent.merge(frame.getStreamId(), frame.getPayloadLength(), Integer::sum);
+			}
+		}
+		return sent;
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.yulong.http2.client.netty;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.http2.client.ConnectionConfig;
+import com.yulong.http2.client.common.ErrorCodeRegistry;
+import com.yulong.http2.client.frame.GoAwayFrame;
+
+/**
+ * The callbacks run once the connection is about to stop taking new streams
+ */
+public class Http2DrainingTest {
+
+	private EmbeddedConnection connection;
+	private final AtomicInteger calls = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		connection = new EmbeddedConnection(new ConnectionConfig());
+	}
+
+	@Test
+	public void onGoAway() {
+		connection.handler.whenDraining(0, calls::incrementAndGet);
+		assertEquals(0, calls.get());
+
+		connection.receive(new GoAwayFrame(0, ErrorCodeRegistry.NO_ERROR, "bye"));
+		assertEquals(1, calls.get());
+		connection.handler.shutdown();
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void onStreamIdReserve() throws Exception {
+		int remaining = connection.handler.remainingStreamIds();
+		connection.handler.whenDraining(remaining, calls::incrementAndGet);
+		assertEquals(0, calls.get());
+
+		connection.openStream();
+		assertEquals(1, calls.get());
+		connection.openStream();
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void rightAwayWhenAlreadyDraining() {
+		connection.handler.shutdown();
+		connection.handler.whenDraining(0, calls::incrementAndGet);
+		assertEquals(1, calls.get());
+	}
+
+}
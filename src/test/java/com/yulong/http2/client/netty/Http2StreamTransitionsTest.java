@@ -0,0 +1,112 @@
+package com.yulong.http2.client.netty;
+
+import static com.yulong.http2.client.netty.Http2StreamTransitions.next;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import com.yulong.http2.client.ConnectionConfig;
+import com.yulong.http2.client.Stream.State;
+import com.yulong.http2.client.frame.DataFrame;
+import com.yulong.http2.client.frame.HeadersFrame;
+import com.yulong.http2.client.hpack.HpackEncoder;
+import com.yulong.http2.client.message.Http2Headers;
+import com.yulong.http2.client.netty.Http2StreamTransitions.Event;
+
+public class Http2StreamTransitionsTest {
+
+	@Test
+	public void request() {
+		State state = next(State.IDLE, Event.SEND_HEADERS);
+		assertEquals(State.OPEN, state);
+		state = next(state, Event.SEND_END_STREAM);
+		assertEquals(State.HALF_CLOSED_LOCAL, state);
+		// The response headers, then the trailers, don't change it:
+		assertNull(next(state, Event.RECEIVE_HEADERS));
+		state = next(state, Event.RECEIVE_END_STREAM);
+		assertEquals(State.CLOSED, state);
+		assertTrue(Http2StreamTransitions.isTerminal(state));
+	}
+
+	@Test
+	public void responseBeforeTheRequestEnds() {
+		State state = next(State.OPEN, Event.RECEIVE_END_STREAM);
+		assertEquals(State.HALF_CLOSED_REMOTE, state);
+		assertFalse(Http2StreamTransitions.isTerminal(state));
+		assertEquals(State.CLOSED, next(state, Event.SEND_END_STREAM));
+	}
+
+	@Test
+	public void push() {
+		State state = next(State.IDLE, Event.RECEIVE_PUSH_PROMISE);
+		assertEquals(State.RESERVED_REMOTE, state);
+		state = next(state, Event.RECEIVE_HEADERS);
+		assertEquals(State.HALF_CLOSED_LOCAL, state);
+		assertEquals(State.CLOSED, next(state, Event.RECEIVE_END_STREAM));
+	}
+
+	@Test
+	public void upgrade() {
+		assertEquals(State.HALF_CLOSED_LOCAL, next(State.IDLE, Event.SEND_UPGRADE_REQUEST));
+	}
+
+	/**
+	 * The response to the request of the upgrade comes on stream 1, which is
+	 * registered on its first HEADERS
+	 */
+	@Test
+	public void upgradeStream() throws Exception {
+		List<State> states = new ArrayList<>();
+		EmbeddedConnection connection = new EmbeddedConnection(new ConnectionConfig()
+				.addStreamStateListener((stream, oldState, newState) -> states.add(newState)));
+
+		Http2Headers headers = new Http2Headers(null);
+		headers.add(":status", "200");
+		ByteBuf block = Unpooled.buffer();
+		new HpackEncoder(4096).encodeHeaders(block, headers);
+		connection.receive(new HeadersFrame(1, false, true, block));
+
+		assertEquals(State.HALF_CLOSED_LOCAL, connection.handler.findStream(1).getState());
+		assertEquals(1, connection.handler.admissionStats().getActiveStreams());
+
+		connection.receive(new DataFrame(1, true, new byte[10]));
+		assertEquals(State.HALF_CLOSED_LOCAL, states.get(0));
+		assertEquals(State.CLOSED, states.get(states.size() - 1));
+		assertNull(connection.handler.findStream(1));
+		assertEquals(0, connection.handler.admissionStats().getActiveStreams());
+	}
+
+	@Test
+	public void reset() {
+		for (State state : new State[] { State.OPEN, State.HALF_CLOSED_LOCAL, State.HALF_CLOSED_REMOTE,
+				State.RESERVED_REMOTE }) {
+			assertEquals(State.RESET_LOCAL, next(state, Event.SEND_RST_STREAM));
+			assertEquals(State.RESET_REMOTE, next(state, Event.RECEIVE_RST_STREAM));
+			assertEquals(State.RESET_REMOTE, next(state, Event.RECEIVE_GOAWAY));
+		}
+		// A closed stream is reset when a frame received on it is in error:
+		assertEquals(State.RESET_LOCAL, next(State.CLOSED, Event.SEND_RST_STREAM));
+		assertNull(next(State.CLOSED, Event.RECEIVE_RST_STREAM));
+		assertNull(next(State.IDLE, Event.RECEIVE_GOAWAY));
+	}
+
+	@Test
+	public void resetIsFinal() {
+		for (State state : new State[] { State.RESET_LOCAL, State.RESET_REMOTE }) {
+			assertTrue(Http2StreamTransitions.isTerminal(state));
+			for (Event event : Event.values()) {
+				assertNull(next(state, event));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.yulong.http2.client.netty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import com.yulong.http2.client.ConnectionConfig;
+import com.yulong.http2.client.common.SettingsRegistry;
+import com.yulong.http2.client.frame.DataFrame;
+import com.yulong.http2.client.frame.Frame;
+import com.yulong.http2.client.frame.HeadersFrame;
+import com.yulong.http2.client.frame.PingFrame;
+import com.yulong.http2.client.frame.SettingsFrame;
+import com.yulong.http2.client.frame.WindowUpdateFrame;
+import com.yulong.http2.client.hpack.HpackEncoder;
+import com.yulong.http2.client.message.Http2Headers;
+
+/**
+ * The growth of the receive windows from the bytes received during a PING
+ * round trip
+ */
+public class Http2WindowTunerTest {
+
+	private static final int INITIAL_WINDOW_SIZE = 65535;
+
+	private EmbeddedConnection connection;
+	private int streamId;
+
+	@Test
+	public void growsToTwiceTheSampleWhenItFillsTheWindow() throws Exception {
+		start(1 << 24);
+
+		byte[] pingData = receiveData(3 * 16384);
+		connection.receive(new PingFrame(true, pingData));
+
+		List<Frame> written = connection.written();
+		SettingsFrame settings = find(written, SettingsFrame.class);
+		assertNotNull(settings);
+		assertEquals(2 * 3 * 16384, (int) settings.getSettings().get(SettingsRegistry.INITIAL_WINDOW_SIZE));
+		assertEquals(2 * 3 * 16384 - INITIAL_WINDOW_SIZE, connectionWindowUpdate(written));
+	}
+
+	@Test
+	public void keepsTheWindowWhenTheSampleIsSmall() throws Exception {
+		start(1 << 24);
+
+		byte[] pingData = receiveData(16384);
+		connection.receive(new PingFrame(true, pingData));
+
+		assertNull(find(connection.written(), SettingsFrame.class));
+	}
+
+	@Test
+	public void growsUpToTheMaximum() throws Exception {
+		start(80000);
+
+		byte[] pingData = receiveData(3 * 16384);
+		connection.receive(new PingFrame(true, pingData));
+
+		SettingsFrame settings = find(connection.written(), SettingsFrame.class);
+		assertEquals(80000, (int) settings.getSettings().get(SettingsRegistry.INITIAL_WINDOW_SIZE));
+
+		// No more PING once there:
+		connection.receive(new DataFrame(streamId, false, new byte[1000]));
+		assertNull(find(connection.written(), PingFrame.class));
+	}
+
+	@Test
+	public void onePingPerRoundTrip() throws Exception {
+		start(1 << 24);
+
+		receiveData(16384);
+		connection.receive(new DataFrame(streamId, false, new byte[16384]));
+		assertNull(find(connection.written(), PingFrame.class));
+	}
+
+	private void start(int maxWindowSize) throws Exception {
+		connection = new EmbeddedConnection(new ConnectionConfig().setReceiveWindowAutoTuning(true)
+				.setMaxReceiveWindowSize(maxWindowSize));
+		streamId = connection.openStream().getId();
+		connection.written();
+
+		Http2Headers headers = new Http2Headers(null);
+		headers.add(":status", "200");
+		ByteBuf block = Unpooled.buffer();
+		new HpackEncoder(4096).encodeHeaders(block, headers);
+		connection.receive(new HeadersFrame(streamId, false, true, block));
+	}
+
+	/**
+	 * Receive DATA frames of 16384 octets, the first of which sends the PING
+	 * 
+	 * @param length
+	 * @return the opaque data of the PING
+	 */
+	private byte[] receiveData(int length) {
+		connection.receive(new DataFrame(streamId, false, new byte[16384]));
+		PingFrame ping = find(connection.written(), PingFrame.class);
+		assertNotNull(ping);
+		assertFalse(ping.isAck());
+		for (int received = 16384; received < length; received += 16384) {
+			connection.receive(new DataFrame(streamId, false, new byte[16384]));
+		}
+		connection.written();
+		assertArrayEquals("windtune".getBytes(), ping.getOpaqueData());
+		return ping.getOpaqueData();
+	}
+
+	private static int connectionWindowUpdate(List<Frame> frames) {
+		int increment = 0;
+		for (Frame frame : frames) {
+			if (frame instanceof WindowUpdateFrame && frame.getStreamId() == 0) {
+				increment += ((WindowUpdateFrame) frame).getWindowSizeIncrement();
+			}
+		}
+		return increment;
+	}
+
+	private static <T extends Frame> T find(List<Frame> frames, Class<T> type) {
+		for (Frame frame : frames) {
+			if (type.isInstance(frame)) {
+				return type.cast(frame);
+			}
+		}
+		return null;
+	}
+
+}